@@ -0,0 +1,267 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32C;
+
+// Versioned binary layout for a user's expenses file:
+//
+//   "XPNS" magic, u8 version
+//   varint row count
+//   varint category count, then each category as varint length + UTF-8 bytes
+//   per row: varint description reference, zigzag varint epoch-day delta from
+//            the previous row, zigzag varint amount in paise, varint category id
+//   u32 CRC32C of everything before it
+//
+// A description reference of 0 is followed by the description inline (varint
+// length + UTF-8 bytes), which then becomes the next dictionary entry; k > 0
+// repeats dictionary entry k - 1, so recurring descriptions cost a varint.
+//
+// Descriptions may contain commas, unlike the CSV format.
+final class BinaryExpenseFormat {
+    static final int VERSION = 1;
+    private static final byte[] MAGIC = {'X', 'P', 'N', 'S'};
+    // Magic, version, the two counts and the checksum
+    private static final int MIN_LENGTH = MAGIC.length + 1 + 2 + 4;
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private BinaryExpenseFormat() {
+    }
+
+    // Thrown by read when the checksum does not match, before any row is added
+    static final class ChecksumMismatchException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        ChecksumMismatchException(String message) {
+            super(message);
+        }
+    }
+
+    // True when the file starts with the binary magic followed by a known version
+    // byte and is long enough for the header. A CSV file whose first description
+    // starts with the magic letters has a printable character there instead;
+    // read() still verifies the checksum.
+    public static boolean isBinary(Path file) throws IOException {
+        if (!file.toFile().exists()) {
+            return false;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() < MIN_LENGTH) {
+                return false;
+            }
+            ByteBuffer head = ByteBuffer.allocate(MAGIC.length + 1);
+            while (head.hasRemaining() && channel.read(head) > 0) {
+                // keep reading until the header is filled or the file ends
+            }
+            int version = head.array()[MAGIC.length] & 0xff;
+            return !head.hasRemaining() && matchesMagic(head.array()) && version >= 1 && version <= VERSION;
+        }
+    }
+
+    public static void write(ExpenseStore expenses, OutputStream out) throws IOException {
+        Writer writer = new Writer(out);
+        writer.bytes(MAGIC, 0, MAGIC.length);
+        writer.raw(VERSION);
+        writer.varint(expenses.size());
+        writer.varint(expenses.getCategoryCount());
+        for (int id = 0; id < expenses.getCategoryCount(); id++) {
+            writer.string(expenses.getCategoryName(id));
+        }
+        Map<String, Integer> descriptionRefs = new HashMap<>();
+        int previousDay = 0;
+        for (int row = 0; row < expenses.size(); row++) {
+            int epochDay = expenses.getEpochDay(row);
+            String description = expenses.getDescription(row);
+            Integer ref = descriptionRefs.get(description);
+            if (ref == null) {
+                descriptionRefs.put(description, descriptionRefs.size() + 1);
+                writer.varint(0);
+                writer.string(description);
+            } else {
+                writer.varint(ref);
+            }
+            writer.varint(zigzag(epochDay - previousDay));
+            writer.varint(zigzag(expenses.getAmountPaise(row)));
+            writer.varint(expenses.getCategoryId(row));
+            previousDay = epochDay;
+        }
+        writer.finish();
+    }
+
+    public static void read(Path file, ExpenseStore expenses) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException(file + ": binary expenses files are limited to 2 GB");
+            }
+            read(FileRegions.read(channel, 0, size), expenses, file.toString());
+        }
+    }
+
+    public static void read(InputStream in, ExpenseStore expenses) throws IOException {
+        read(ByteBuffer.wrap(in.readAllBytes()), expenses, "stream");
+    }
+
+    private static void read(ByteBuffer buffer, ExpenseStore expenses, String name) throws IOException {
+        int fileLength = buffer.limit();
+        if (fileLength < MIN_LENGTH) {
+            throw new IOException(name + ": truncated binary expenses file");
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(buffer.duplicate().limit(fileLength - 4));
+        if ((int) crc.getValue() != buffer.getInt(fileLength - 4)) {
+            throw new ChecksumMismatchException(name + ": checksum mismatch");
+        }
+        buffer.limit(fileLength - 4);
+
+        byte[] magic = new byte[MAGIC.length];
+        buffer.get(magic);
+        if (!matchesMagic(magic)) {
+            throw new IOException(name + ": not a binary expenses file");
+        }
+        int version = buffer.get() & 0xff;
+        if (version != VERSION) {
+            throw new IOException(name + ": unsupported binary format version " + version);
+        }
+
+        try {
+            long rows = readVarint(buffer);
+            int categoryCount = (int) readVarint(buffer);
+            byte[] scratch = new byte[256];
+            int[] categoryIds = new int[categoryCount];
+            for (int id = 0; id < categoryCount; id++) {
+                int length = (int) readVarint(buffer);
+                scratch = readBytes(buffer, scratch, length);
+                categoryIds[id] = expenses.categoryId(new String(scratch, 0, length, StandardCharsets.UTF_8));
+            }
+            List<String> descriptions = new ArrayList<>();
+            int epochDay = 0;
+            for (long row = 0; row < rows; row++) {
+                int ref = (int) readVarint(buffer);
+                String description;
+                if (ref == 0) {
+                    int length = (int) readVarint(buffer);
+                    scratch = readBytes(buffer, scratch, length);
+                    description = new String(scratch, 0, length, StandardCharsets.UTF_8);
+                    descriptions.add(description);
+                } else {
+                    description = descriptions.get(ref - 1);
+                }
+                epochDay += (int) unzigzag(readVarint(buffer));
+                long amountPaise = unzigzag(readVarint(buffer));
+                expenses.addRow(description, epochDay, categoryIds[(int) readVarint(buffer)], amountPaise);
+            }
+        } catch (RuntimeException e) {
+            throw new IOException(name + ": corrupt binary expenses file", e);
+        }
+    }
+
+    // Reads length bytes into scratch, growing it if needed
+    private static byte[] readBytes(ByteBuffer buffer, byte[] scratch, int length) {
+        if (length > scratch.length) {
+            scratch = new byte[Math.max(length, scratch.length * 2)];
+        }
+        buffer.get(scratch, 0, length);
+        return scratch;
+    }
+
+    private static long readVarint(ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7f) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalStateException("varint too long");
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static boolean matchesMagic(byte[] head) {
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (head[i] != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Buffered writer that keeps the running CRC32C and appends it on finish()
+    private static final class Writer {
+        private final OutputStream out;
+        private final CRC32C crc = new CRC32C();
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+        private int position;
+
+        Writer(OutputStream out) {
+            this.out = out;
+        }
+
+        void raw(int b) throws IOException {
+            if (position == buffer.length) {
+                flush();
+            }
+            buffer[position++] = (byte) b;
+        }
+
+        void varint(long value) throws IOException {
+            if (buffer.length - position < 10) {
+                flush();
+            }
+            while ((value & ~0x7fL) != 0) {
+                buffer[position++] = (byte) ((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            buffer[position++] = (byte) value;
+        }
+
+        void string(String value) throws IOException {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            varint(bytes.length);
+            bytes(bytes, 0, bytes.length);
+        }
+
+        void bytes(byte[] bytes, int offset, int length) throws IOException {
+            if (length > buffer.length - position) {
+                flush();
+                if (length > buffer.length) {
+                    crc.update(bytes, offset, length);
+                    out.write(bytes, offset, length);
+                    return;
+                }
+            }
+            System.arraycopy(bytes, offset, buffer, position, length);
+            position += length;
+        }
+
+        void finish() throws IOException {
+            flush();
+            int checksum = (int) crc.getValue();
+            out.write(new byte[]{(byte) (checksum >>> 24), (byte) (checksum >>> 16),
+                    (byte) (checksum >>> 8), (byte) checksum});
+            out.flush();
+        }
+
+        private void flush() throws IOException {
+            crc.update(buffer, 0, position);
+            out.write(buffer, 0, position);
+            position = 0;
+        }
+    }
+}
@@ -0,0 +1,325 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Spending limits per category and period, one per line:
+//
+//   month 5000 -> Food                 at most RS 5000 of Food per calendar month
+//   year 60000 at 50,90,100 -> Travel  alerts at 50%, 90% and 100% instead
+//   month 40000 -> *                   every category together
+//
+// The period is day, month or year and the limit is in rupees; alerts default
+// to 80% and 100% of it. Blank lines and lines starting with # are ignored.
+//
+// A monitor keeps each budget's spending per period as a running counter,
+// updated with every added and removed expense, so checking a change against
+// any number of budgets costs only the budgets of its category. A counter is
+// seeded from the ledger's rollups the first time its period is touched. An
+// alert is raised each time spending rises from below a threshold to or above
+// it; spending that falls back below can raise it again.
+//
+// Not thread-safe: LedgerEngine calls it under its write lock.
+class BudgetMonitor {
+    private static final Pattern BUDGET = Pattern.compile(
+            "(day|month|year)\\s+(\\S+)(?:\\s+at\\s+(\\d+(?:\\s*,\\s*\\d+)*))?\\s*->\\s*(.+)");
+    private static final int[] DEFAULT_PERCENTS = {80, 100};
+    private static final long UNSEEDED = Long.MIN_VALUE;
+    // Periods in a counter's dense array: over 11 years of days
+    private static final int MAX_SPAN = 1 << 12;
+
+    // One limit, immutable
+    static final class Budget {
+        private final String category;
+        private final ExpenseAggregates.Granularity period;
+        private final long limitPaise;
+        private final int[] percents;
+        private final long[] thresholdPaise;
+
+        Budget(String category, ExpenseAggregates.Granularity period, long limitPaise, int... percents) {
+            if (limitPaise <= 0) {
+                throw new IllegalArgumentException("limit must be positive");
+            }
+            this.category = category;
+            this.period = period;
+            this.limitPaise = limitPaise;
+            this.percents = percents.clone();
+            Arrays.sort(this.percents);
+            thresholdPaise = new long[this.percents.length];
+            for (int i = 0; i < thresholdPaise.length; i++) {
+                // Rounded up, so 80% of RS 0.05 is not reached at RS 0.03
+                thresholdPaise[i] = Math.max(1, (limitPaise * this.percents[i] + 99) / 100);
+            }
+        }
+
+        // Null for a budget over every category
+        public String getCategory() {
+            return category;
+        }
+
+        public ExpenseAggregates.Granularity getPeriod() {
+            return period;
+        }
+
+        public long getLimitPaise() {
+            return limitPaise;
+        }
+
+        @Override
+        public String toString() {
+            String per = period == ExpenseAggregates.Granularity.DAY ? "daily"
+                    : period == ExpenseAggregates.Granularity.MONTH ? "monthly" : "yearly";
+            return (category == null ? "Total" : category) + " " + per + " budget";
+        }
+    }
+
+    // A threshold of a budget reached in one period
+    static final class Alert {
+        private final Budget budget;
+        private final int bucket;
+        private final int percent;
+        private final long spentPaise;
+
+        private Alert(Budget budget, int bucket, int percent, long spentPaise) {
+            this.budget = budget;
+            this.bucket = bucket;
+            this.percent = percent;
+            this.spentPaise = spentPaise;
+        }
+
+        public Budget getBudget() {
+            return budget;
+        }
+
+        // yyyy-MM-dd, yyyy-MM or yyyy
+        public String getPeriodLabel() {
+            return budget.period.label(bucket);
+        }
+
+        public int getPercent() {
+            return percent;
+        }
+
+        // Spending in the period after the change that raised the alert
+        public long getSpentPaise() {
+            return spentPaise;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder message = new StringBuilder(budget.toString()).append(" for ").append(getPeriodLabel())
+                    .append(": ").append(percent).append("% reached (RS ");
+            Money.appendTo(message, spentPaise).append(" of RS ");
+            return Money.appendTo(message, budget.limitPaise).append(')').toString();
+        }
+    }
+
+    // Spending per period of one budget, in a dense array from the first period
+    // touched; UNSEEDED for periods not touched yet. The array spans at most
+    // MAX_SPAN periods, so a stray date centuries away cannot grow it to millions
+    // of slots: periods beyond that are kept in a map.
+    private static final class Counters {
+        final Budget budget;
+        int firstBucket;
+        long[] spentPaise;
+        Map<Integer, Long> outliers;
+
+        Counters(Budget budget) {
+            this.budget = budget;
+        }
+
+        long get(int bucket) {
+            int slot = slot(bucket);
+            if (slot >= 0) {
+                return spentPaise[slot];
+            }
+            return outliers == null ? UNSEEDED : outliers.getOrDefault(bucket, UNSEEDED);
+        }
+
+        void set(int bucket, long spent) {
+            int slot = slot(bucket);
+            if (slot >= 0) {
+                spentPaise[slot] = spent;
+            } else {
+                if (outliers == null) {
+                    outliers = new HashMap<>();
+                }
+                outliers.put(bucket, spent);
+            }
+        }
+
+        // -1 if the bucket is too far from the others for the array
+        private int slot(int bucket) {
+            if (spentPaise == null) {
+                firstBucket = bucket;
+                spentPaise = new long[8];
+                Arrays.fill(spentPaise, UNSEEDED);
+            } else if (bucket < firstBucket || bucket - firstBucket >= spentPaise.length) {
+                // At least double the span, up to MAX_SPAN, with the room on the bucket's side
+                int first = Math.min(firstBucket, bucket);
+                int last = Math.max(firstBucket + spentPaise.length - 1, bucket);
+                if ((long) last - first + 1 > MAX_SPAN) {
+                    return -1;
+                }
+                int length = Math.min(MAX_SPAN, Math.max(spentPaise.length * 2, last - first + 1));
+                if (bucket < firstBucket) {
+                    first = last - length + 1;
+                }
+                long[] grown = new long[length];
+                Arrays.fill(grown, UNSEEDED);
+                System.arraycopy(spentPaise, 0, grown, firstBucket - first, spentPaise.length);
+                firstBucket = first;
+                spentPaise = grown;
+            }
+            return bucket - firstBucket;
+        }
+    }
+
+    private final List<Budget> budgets;
+    private final ExpenseAggregates aggregates;
+    private final Map<String, Counters[]> byCategory = new HashMap<>();
+    private final Counters[] allCategories;
+    private List<Alert> alerts = new ArrayList<>();
+
+    // Monitors the budgets over a ledger whose totals are kept by aggregates
+    BudgetMonitor(List<Budget> budgets, ExpenseAggregates aggregates) {
+        this.budgets = Collections.unmodifiableList(new ArrayList<>(budgets));
+        this.aggregates = aggregates;
+        Map<String, List<Counters>> grouped = new HashMap<>();
+        List<Counters> all = new ArrayList<>();
+        for (Budget budget : budgets) {
+            if (budget.category == null) {
+                all.add(new Counters(budget));
+            } else {
+                grouped.computeIfAbsent(budget.category, k -> new ArrayList<>()).add(new Counters(budget));
+            }
+        }
+        grouped.forEach((category, counters) -> byCategory.put(category, counters.toArray(new Counters[0])));
+        allCategories = all.toArray(new Counters[0]);
+    }
+
+    // Parses the budgets; throws IllegalArgumentException naming the first
+    // malformed line
+    public static List<Budget> parse(List<String> lines) {
+        List<Budget> budgets = new ArrayList<>();
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i).trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            Matcher budget = BUDGET.matcher(line);
+            if (!budget.matches()) {
+                throw new IllegalArgumentException("line " + (i + 1)
+                        + ": expected day|month|year <limit> [at <percent>,...] -> <category>|*");
+            }
+            try {
+                ExpenseAggregates.Granularity period = ExpenseAggregates.Granularity.valueOf(
+                        budget.group(1).toUpperCase(Locale.ROOT));
+                int[] percents = budget.group(3) == null ? DEFAULT_PERCENTS
+                        : Arrays.stream(budget.group(3).split("\\s*,\\s*")).mapToInt(Integer::parseInt).toArray();
+                String category = budget.group(4).trim();
+                budgets.add(new Budget(category.equals("*") ? null : category, period,
+                        Money.parse(budget.group(2)), percents));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("line " + (i + 1) + ": " + e.getMessage());
+            }
+        }
+        return budgets;
+    }
+
+    public static List<Budget> load(Path file) throws IOException {
+        return parse(Files.readAllLines(file, StandardCharsets.UTF_8));
+    }
+
+    public List<Budget> getBudgets() {
+        return budgets;
+    }
+
+    // Call before the aggregates are told about the expense
+    void expenseAdded(Expense expense) {
+        changed(expense.getCategory(), ExpenseStore.toEpochDay(expense.getDate()), expense.getAmountPaise());
+    }
+
+    // Call before the aggregates are told about the removal
+    void expenseRemoved(Expense expense) {
+        changed(expense.getCategory(), ExpenseStore.toEpochDay(expense.getDate()), -expense.getAmountPaise());
+    }
+
+    // Rows from..to-1 were appended to the store; call before the aggregates are
+    // told about them
+    void rowsAdded(ExpenseStore expenses, int from, int to) {
+        for (int row = from; row < to; row++) {
+            changed(expenses.getCategory(row), expenses.getEpochDay(row), expenses.getAmountPaise(row));
+        }
+    }
+
+    // Spending of the budget in the period holding epochDay
+    long getSpentPaise(Budget budget, int epochDay) {
+        Counters[] candidates = budget.category == null ? allCategories : byCategory.get(budget.category);
+        for (Counters counters : candidates == null ? new Counters[0] : candidates) {
+            if (counters.budget == budget) {
+                return spent(counters, budget.period.bucket(epochDay));
+            }
+        }
+        throw new IllegalArgumentException("not a monitored budget: " + budget);
+    }
+
+    // The alerts raised since the last call, in the order raised
+    List<Alert> takeAlerts() {
+        if (alerts.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<Alert> taken = alerts;
+        alerts = new ArrayList<>();
+        return taken;
+    }
+
+    private void changed(String category, int epochDay, long amountPaise) {
+        Counters[] categoryCounters = byCategory.get(category);
+        if (categoryCounters != null) {
+            for (Counters counters : categoryCounters) {
+                apply(counters, epochDay, amountPaise);
+            }
+        }
+        for (Counters counters : allCategories) {
+            apply(counters, epochDay, amountPaise);
+        }
+    }
+
+    private void apply(Counters counters, int epochDay, long amountPaise) {
+        Budget budget = counters.budget;
+        int bucket = budget.period.bucket(epochDay);
+        long before = spent(counters, bucket);
+        long after = before + amountPaise;
+        counters.set(bucket, after);
+        if (amountPaise > 0) {
+            long[] thresholds = budget.thresholdPaise;
+            for (int i = 0; i < thresholds.length; i++) {
+                if (before < thresholds[i] && after >= thresholds[i]) {
+                    alerts.add(new Alert(budget, bucket, budget.percents[i], after));
+                }
+            }
+        }
+    }
+
+    // The period's counter, seeded from the rollups if it was never touched
+    private long spent(Counters counters, int bucket) {
+        long spent = counters.get(bucket);
+        if (spent == UNSEEDED) {
+            ExpenseAggregates.Granularity period = counters.budget.period;
+            spent = aggregates.getTotal(counters.budget.category, period.firstDay(bucket),
+                    period.firstDay(bucket + 1) - 1);
+            counters.set(bucket, spent);
+        }
+        return spent;
+    }
+}
@@ -0,0 +1,70 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Maps UTF-8 byte ranges to canonical Strings so repeated categories and
+// descriptions are decoded once. Open addressing; stops growing at maxEntries
+// and then simply decodes misses.
+class ByteStringPool {
+    private final int maxEntries;
+    private byte[][] keys;
+    private String[] values;
+    private int[] hashes;
+    private int size;
+
+    public ByteStringPool(int maxEntries) {
+        this.maxEntries = maxEntries;
+        keys = new byte[64][];
+        values = new String[64];
+        hashes = new int[64];
+    }
+
+    public String get(byte[] buffer, int start, int end) {
+        int hash = 1;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + buffer[i];
+        }
+        int mask = keys.length - 1;
+        int slot = mix(hash) & mask;
+        while (keys[slot] != null) {
+            if (hashes[slot] == hash && Arrays.equals(keys[slot], 0, keys[slot].length, buffer, start, end)) {
+                return values[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        String value = new String(buffer, start, end - start, StandardCharsets.UTF_8);
+        if (size < maxEntries) {
+            keys[slot] = Arrays.copyOfRange(buffer, start, end);
+            values[slot] = value;
+            hashes[slot] = hash;
+            if (++size * 2 > keys.length) {
+                grow();
+            }
+        }
+        return value;
+    }
+
+    private void grow() {
+        byte[][] oldKeys = keys;
+        String[] oldValues = values;
+        int[] oldHashes = hashes;
+        keys = new byte[oldKeys.length * 2][];
+        values = new String[oldKeys.length * 2];
+        hashes = new int[oldKeys.length * 2];
+        int mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != null) {
+                int slot = mix(oldHashes[i]) & mask;
+                while (keys[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+                hashes[slot] = oldHashes[i];
+            }
+        }
+    }
+
+    private static int mix(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -0,0 +1,257 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Assigns categories from description and amount rules, one per line:
+//
+//   keyword uber eats -> Travel          description contains the text
+//   prefix  amzn -> Shopping             description starts with it
+//   regex   ^atm\s+\d+ -> Cash           description matches (find) the regex
+//   amount  50000..* -> Big purchase     amount in rupees, inclusive; * is unbounded
+//
+// Text matching ignores case. Any rule but an amount rule may end with
+// "amount min..max" to also require an amount range. The first matching rule in
+// file order wins; blank lines and lines starting with # are ignored. Categories
+// cannot contain commas.
+//
+// Keyword and prefix rules compile into one Aho-Corasick automaton, so a
+// description is scanned once whatever the number of rules; regex and amount
+// rules are only tried if they come before the best literal match.
+// Immutable once built, so it can be shared between threads.
+class CategoryRules implements ExpenseImporter.Categorizer {
+    private static final Pattern RULE = Pattern.compile(
+            "(keyword|prefix|regex|amount)\\s+(.+?)(?:\\s+amount\\s+(\\S*)\\.\\.(\\S*))?\\s*->\\s*(.+)");
+    private static final Pattern AMOUNT_RANGE = Pattern.compile("(\\S*)\\.\\.(\\S*)");
+    private static final int ROOT = 0;
+    private static final int[] NO_RULES = new int[0];
+
+    private final String[] categories;
+    private final boolean[] prefixOnly;
+    private final int[] patternLengths;
+    private final long[] minPaise;
+    private final long[] maxPaise;
+
+    // Rules not in the automaton (regex and amount), in rule order; null pattern for amount rules
+    private final int[] scannedRules;
+    private final Pattern[] scannedPatterns;
+
+    // Automaton: transitions keyed by (node << 16 | char), failure links, and the
+    // rules ending at each node (including via its failure chain), in rule order
+    private final LongIntHashMap transitions = new LongIntHashMap();
+    private int[] fail;
+    private int[][] outputs;
+    private int nodes = 1;
+
+    // Parses and compiles the rules; throws IllegalArgumentException naming the
+    // first malformed line
+    public static CategoryRules parse(List<String> lines) {
+        return new CategoryRules(lines);
+    }
+
+    public static CategoryRules load(Path file) throws IOException {
+        return parse(Files.readAllLines(file, StandardCharsets.UTF_8));
+    }
+
+    private CategoryRules(List<String> lines) {
+        List<String> kinds = new ArrayList<>();
+        List<String> patterns = new ArrayList<>();
+        List<String> categoryList = new ArrayList<>();
+        List<long[]> ranges = new ArrayList<>();
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i).trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            Matcher rule = RULE.matcher(line);
+            if (!rule.matches()) {
+                throw new IllegalArgumentException("line " + (i + 1) + ": expected <kind> <pattern> -> <category>");
+            }
+            try {
+                String kind = rule.group(1);
+                String pattern = rule.group(2);
+                long[] range = {Long.MIN_VALUE, Long.MAX_VALUE};
+                if (kind.equals("amount")) {
+                    Matcher amounts = AMOUNT_RANGE.matcher(pattern);
+                    if (!amounts.matches()) {
+                        throw new IllegalArgumentException("expected min..max");
+                    }
+                    range = parseRange(amounts.group(1), amounts.group(2));
+                } else if (rule.group(3) != null) {
+                    range = parseRange(rule.group(3), rule.group(4));
+                }
+                if (kind.equals("regex")) {
+                    Pattern.compile(pattern);
+                }
+                // Categories are stored unquoted in comma-separated rows
+                String category = rule.group(5).trim();
+                if (category.indexOf(',') >= 0) {
+                    throw new IllegalArgumentException("category cannot contain commas");
+                }
+                kinds.add(kind);
+                patterns.add(pattern);
+                categoryList.add(category);
+                ranges.add(range);
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("line " + (i + 1) + ": " + e.getMessage(), e);
+            }
+        }
+
+        int count = kinds.size();
+        categories = categoryList.toArray(new String[0]);
+        prefixOnly = new boolean[count];
+        patternLengths = new int[count];
+        minPaise = new long[count];
+        maxPaise = new long[count];
+        List<Integer> scanned = new ArrayList<>();
+        List<List<Integer>> nodeRules = new ArrayList<>();
+        nodeRules.add(new ArrayList<>());
+        List<long[]> edges = new ArrayList<>();
+        for (int rule = 0; rule < count; rule++) {
+            minPaise[rule] = ranges.get(rule)[0];
+            maxPaise[rule] = ranges.get(rule)[1];
+            String kind = kinds.get(rule);
+            if (kind.equals("keyword") || kind.equals("prefix")) {
+                prefixOnly[rule] = kind.equals("prefix");
+                patternLengths[rule] = patterns.get(rule).length();
+                nodeRules.get(addPattern(patterns.get(rule), nodeRules, edges)).add(rule);
+            } else {
+                scanned.add(rule);
+            }
+        }
+        scannedRules = scanned.stream().mapToInt(Integer::intValue).toArray();
+        scannedPatterns = new Pattern[scannedRules.length];
+        for (int i = 0; i < scannedRules.length; i++) {
+            if (kinds.get(scannedRules[i]).equals("regex")) {
+                scannedPatterns[i] = Pattern.compile(patterns.get(scannedRules[i]),
+                        Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE);
+            }
+        }
+        linkFailures(nodeRules, edges);
+    }
+
+    // Category for the expense, or null if no rule matches
+    @Override
+    public String categorize(String description, long amountPaise) {
+        int best = Integer.MAX_VALUE;
+        int node = ROOT;
+        for (int i = 0; i < description.length(); i++) {
+            char c = Character.toLowerCase(description.charAt(i));
+            int next;
+            while ((next = transitions.get(key(node, c))) < 0 && node != ROOT) {
+                node = fail[node];
+            }
+            node = Math.max(next, ROOT);
+            for (int rule : outputs[node]) {
+                if (rule >= best) {
+                    break;
+                }
+                if ((!prefixOnly[rule] || i + 1 == patternLengths[rule]) && inRange(rule, amountPaise)) {
+                    best = rule;
+                    break;
+                }
+            }
+        }
+        for (int i = 0; i < scannedRules.length && scannedRules[i] < best; i++) {
+            int rule = scannedRules[i];
+            if (inRange(rule, amountPaise)
+                    && (scannedPatterns[i] == null || scannedPatterns[i].matcher(description).find())) {
+                best = rule;
+            }
+        }
+        return best == Integer.MAX_VALUE ? null : categories[best];
+    }
+
+    public int size() {
+        return categories.length;
+    }
+
+    private boolean inRange(int rule, long amountPaise) {
+        return amountPaise >= minPaise[rule] && amountPaise <= maxPaise[rule];
+    }
+
+    // Adds the pattern's path to the trie and returns its last node
+    private int addPattern(String pattern, List<List<Integer>> nodeRules, List<long[]> edges) {
+        int node = ROOT;
+        for (int i = 0; i < pattern.length(); i++) {
+            long key = key(node, Character.toLowerCase(pattern.charAt(i)));
+            int next = transitions.get(key);
+            if (next < 0) {
+                next = nodes++;
+                transitions.put(key, next);
+                nodeRules.add(new ArrayList<>());
+                edges.add(new long[]{key, next});
+            }
+            node = next;
+        }
+        return node;
+    }
+
+    // Breadth-first over the trie: each node's failure link is the longest proper
+    // suffix of its path that is also in the trie, and its outputs include that node's
+    private void linkFailures(List<List<Integer>> nodeRules, List<long[]> edges) {
+        // Children of each node as ranges of edges sorted by parent
+        edges.sort((edge1, edge2) -> Long.compare(edge1[0] >>> 16, edge2[0] >>> 16));
+        int[] firstEdge = new int[nodes + 1];
+        for (long[] edge : edges) {
+            firstEdge[(int) (edge[0] >>> 16) + 1]++;
+        }
+        for (int node = 0; node < nodes; node++) {
+            firstEdge[node + 1] += firstEdge[node];
+        }
+
+        fail = new int[nodes];
+        outputs = new int[nodes][];
+        outputs[ROOT] = NO_RULES;
+        int[] queue = new int[nodes];
+        int head = 0;
+        int tail = 0;
+        queue[tail++] = ROOT;
+        while (head < tail) {
+            int node = queue[head++];
+            for (int e = firstEdge[node]; e < firstEdge[node + 1]; e++) {
+                char c = (char) (edges.get(e)[0] & 0xFFFF);
+                int child = (int) edges.get(e)[1];
+                int target = ROOT;
+                if (node != ROOT) {
+                    int f = fail[node];
+                    int next;
+                    while ((next = transitions.get(key(f, c))) < 0 && f != ROOT) {
+                        f = fail[f];
+                    }
+                    target = Math.max(next, ROOT);
+                }
+                fail[child] = target;
+                outputs[child] = sortedRules(nodeRules.get(child), outputs[target]);
+                queue[tail++] = child;
+            }
+        }
+    }
+
+    private static int[] sortedRules(List<Integer> own, int[] inherited) {
+        if (own.isEmpty()) {
+            return inherited;
+        }
+        int[] rules = Arrays.copyOf(inherited, inherited.length + own.size());
+        for (int i = 0; i < own.size(); i++) {
+            rules[inherited.length + i] = own.get(i);
+        }
+        Arrays.sort(rules);
+        return rules;
+    }
+
+    private static long[] parseRange(String min, String max) {
+        return new long[]{
+                min.isEmpty() || min.equals("*") ? Long.MIN_VALUE : Money.parse(min),
+                max.isEmpty() || max.equals("*") ? Long.MAX_VALUE : Money.parse(max)};
+    }
+
+    private static long key(int node, char c) {
+        return ((long) node << 16) | c;
+    }
+}
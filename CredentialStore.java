@@ -0,0 +1,179 @@
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+
+// In-memory index of credentials.txt: username -> stored credential, loaded once
+// and then extended from the file's tail when it grows, so lookups are O(1)
+// instead of a scan of the file per login.
+//
+// Passwords are stored as "username,pbkdf2$<iterations>$<salt>$<hash>" using
+// PBKDF2-HMAC-SHA256. The cost is set with -Dexpensetracker.pbkdf2.iterations.
+// Legacy "username,password" lines still log in and are rehashed on the first
+// successful login, as are hashes with fewer iterations than configured.
+class CredentialStore {
+    static final int ITERATIONS = Integer.getInteger("expensetracker.pbkdf2.iterations", 600_000);
+
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final String HASH_PREFIX = "pbkdf2$";
+    private static final int SALT_BYTES = 16;
+    private static final int HASH_BITS = 256;
+
+    private final File file;
+    private final Map<String, String> credentials = new HashMap<>();
+    private final SecureRandom random = new SecureRandom();
+    private long loadedBytes;
+    private long lastHashNanos;
+
+    public CredentialStore(String path) {
+        file = new File(path);
+    }
+
+    public synchronized boolean userExists(String username) throws IOException {
+        refresh();
+        return credentials.containsKey(username);
+    }
+
+    public synchronized boolean isValidUser(String username, char[] password) throws IOException {
+        refresh();
+        String stored = credentials.get(username);
+        if (stored == null) {
+            return false;
+        }
+        if (!stored.startsWith(HASH_PREFIX)) {
+            // Legacy plaintext entry: compare, then upgrade it to a hash
+            if (!MessageDigest.isEqual(stored.getBytes(StandardCharsets.UTF_8),
+                    new String(password).getBytes(StandardCharsets.UTF_8))) {
+                return false;
+            }
+            rehash(username, password);
+            return true;
+        }
+        String[] parts = stored.split("\\$");
+        int iterations = Integer.parseInt(parts[1]);
+        byte[] salt = Base64.getDecoder().decode(parts[2]);
+        byte[] expected = Base64.getDecoder().decode(parts[3]);
+        if (!MessageDigest.isEqual(expected, hash(password, salt, iterations))) {
+            return false;
+        }
+        if (iterations < ITERATIONS) {
+            rehash(username, password);
+        }
+        return true;
+    }
+
+    // Appends the new user; the caller checks userExists first
+    public synchronized void addUser(String username, char[] password) throws IOException {
+        refresh();
+        String stored = newHash(password);
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8)) {
+            writer.write(username + "," + stored + System.lineSeparator());
+        }
+        credentials.put(username, stored);
+        loadedBytes = file.length();
+    }
+
+    // Wall time of the most recent PBKDF2 computation
+    public synchronized long getLastHashNanos() {
+        return lastHashNanos;
+    }
+
+    // Reads lines appended since the last call (e.g. by another instance), or the
+    // whole file if it was replaced
+    private void refresh() throws IOException {
+        long length = file.length();
+        if (length == loadedBytes) {
+            return;
+        }
+        if (length < loadedBytes) {
+            credentials.clear();
+            loadedBytes = 0;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            raf.seek(loadedBytes);
+            byte[] tail = new byte[(int) (length - loadedBytes)];
+            raf.readFully(tail);
+            int start = 0;
+            for (int i = 0; i < tail.length; i++) {
+                if (tail[i] == '\n') {
+                    addLine(new String(tail, start, i - start, StandardCharsets.UTF_8));
+                    start = i + 1;
+                }
+            }
+            // An unterminated last line is picked up once it is complete
+            loadedBytes += start;
+        }
+    }
+
+    private void addLine(String line) {
+        if (line.endsWith("\r")) {
+            line = line.substring(0, line.length() - 1);
+        }
+        int comma = line.indexOf(',');
+        if (comma > 0) {
+            credentials.put(line.substring(0, comma), line.substring(comma + 1));
+        }
+    }
+
+    private void rehash(String username, char[] password) throws IOException {
+        credentials.put(username, newHash(password));
+        rewrite();
+    }
+
+    // Replaces the file atomically with the current index
+    private void rewrite() throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp);
+             BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8))) {
+            for (Map.Entry<String, String> entry : credentials.entrySet()) {
+                writer.write(entry.getKey() + "," + entry.getValue());
+                writer.newLine();
+            }
+            writer.flush();
+            out.getChannel().force(true);
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        loadedBytes = file.length();
+    }
+
+    private String newHash(char[] password) {
+        byte[] salt = new byte[SALT_BYTES];
+        random.nextBytes(salt);
+        byte[] hash = hash(password, salt, ITERATIONS);
+        return HASH_PREFIX + ITERATIONS + "$" + Base64.getEncoder().encodeToString(salt)
+                + "$" + Base64.getEncoder().encodeToString(hash);
+    }
+
+    private byte[] hash(char[] password, byte[] salt, int iterations) {
+        long start = System.nanoTime();
+        PBEKeySpec spec = new PBEKeySpec(password, salt, iterations, HASH_BITS);
+        try {
+            return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(ALGORITHM + " is not available", e);
+        } finally {
+            spec.clearPassword();
+            lastHashNanos = System.nanoTime() - start;
+        }
+    }
+
+    // Prints the cost of one hash at the configured iteration count
+    public static void main(String[] args) throws IOException {
+        File scratch = File.createTempFile("credentials", ".txt");
+        scratch.deleteOnExit();
+        CredentialStore store = new CredentialStore(scratch.getPath());
+        store.addUser("benchmark", "benchmark".toCharArray());
+        for (int i = 0; i < 5; i++) {
+            store.isValidUser("benchmark", "benchmark".toCharArray());
+            System.out.printf("PBKDF2 x %,d iterations: %.1f ms%n", ITERATIONS, store.getLastHashNanos() / 1e6);
+        }
+    }
+}
@@ -0,0 +1,307 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+// Inverted index from the words of expense descriptions to the ids of the rows
+// that contain them. Words are maximal runs of letters and digits, lower-cased.
+// Each word's postings are the row ids in increasing order, stored as varint
+// deltas in one byte array: ids are handed out in increasing order, so an added
+// row is always an append, and a word shared by many rows costs about a byte per row.
+//
+// Removed rows are not taken out of the postings; they no longer resolve to a
+// row, so searches skip them. Once they outnumber the live rows, ExpenseIndexes
+// drops the index and the next search rebuilds it.
+//
+// A query matches the rows that have every one of its words. Each query word
+// matches index words by Match:
+//
+//   EXACT   the same word
+//   PREFIX  words starting with it (search as you type)
+//   FUZZY   words within one edit (two from eight letters on) of it, for typos
+class DescriptionIndex {
+    private static final long[] NO_IDS = new long[0];
+    private static final int SPLIT_CACHE_SIZE = 1 << 16;
+
+    enum Match {
+        EXACT, PREFIX, FUZZY
+    }
+
+    // Row ids containing one word, ascending, as varint-encoded deltas
+    private static final class Postings {
+        byte[] bytes = new byte[4];
+        int length;
+        int count;
+        long lastId;
+
+        void add(long id) {
+            if (id == lastId) {
+                return;
+            }
+            if (length + 10 > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(length + 10, bytes.length * 2));
+            }
+            long delta = id - lastId;
+            while (delta >= 0x80) {
+                bytes[length++] = (byte) (delta | 0x80);
+                delta >>>= 7;
+            }
+            bytes[length++] = (byte) delta;
+            lastId = id;
+            count++;
+        }
+
+        long[] ids() {
+            long[] ids = new long[count];
+            long id = 0;
+            int position = 0;
+            for (int i = 0; i < count; i++) {
+                long delta = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = bytes[position++];
+                    delta |= (long) (b & 0x7F) << shift;
+                    shift += 7;
+                } while (b < 0);
+                id += delta;
+                ids[i] = id;
+            }
+            return ids;
+        }
+    }
+
+    private final ExpenseStore store;
+    private final Map<String, Postings> words = new HashMap<>();
+    // The words in order, for prefix searches; rebuilt after new words were added
+    private String[] sortedWords;
+    private boolean built;
+    private int removedRows;
+
+    DescriptionIndex(ExpenseStore store) {
+        this.store = store;
+    }
+
+    boolean isBuilt() {
+        return built;
+    }
+
+    // Indexes every row in id order, so each postings list is built by appends.
+    // Ledgers repeat descriptions a lot, so the first SPLIT_CACHE_SIZE distinct
+    // ones are split once and their words reused.
+    void build(SortedRowIndex rowsById) {
+        words.clear();
+        sortedWords = null;
+        removedRows = 0;
+        Map<String, String[]> splitDescriptions = new HashMap<>();
+        for (int position = 0; position < rowsById.size(); position++) {
+            int row = rowsById.get(position);
+            String description = store.getDescription(row);
+            String[] rowWords = splitDescriptions.get(description);
+            if (rowWords == null) {
+                rowWords = split(description);
+                if (splitDescriptions.size() < SPLIT_CACHE_SIZE) {
+                    splitDescriptions.put(description, rowWords);
+                }
+            }
+            index(store.getId(row), rowWords);
+        }
+        built = true;
+    }
+
+    // Unindexed rows are never searched before build(), which covers them
+    void rowAdded(int row) {
+        if (built) {
+            index(store.getId(row), split(store.getDescription(row)));
+        }
+    }
+
+    // True once the index holds more removed rows than live ones and should be rebuilt
+    boolean rowRemoved() {
+        return built && ++removedRows > store.size();
+    }
+
+    // Store rows whose description has every word of the query, in id order; no
+    // rows for a query without words
+    int[] search(String query, Match match) {
+        String[] queryWords = split(query);
+        if (queryWords.length == 0) {
+            return new int[0];
+        }
+        long[] ids = null;
+        for (String queryWord : queryWords) {
+            long[] wordIds = matchingIds(queryWord, match);
+            ids = ids == null ? wordIds : intersect(ids, wordIds);
+            if (ids.length == 0) {
+                break;
+            }
+        }
+        int[] rows = new int[ids.length];
+        int found = 0;
+        for (long id : ids) {
+            int row = store.getRow(id);
+            if (row >= 0) {
+                rows[found++] = row;
+            }
+        }
+        return Arrays.copyOf(rows, found);
+    }
+
+    private void index(long id, String[] rowWords) {
+        for (String word : rowWords) {
+            Postings postings = words.get(word);
+            if (postings == null) {
+                postings = new Postings();
+                words.put(word, postings);
+                sortedWords = null;
+            }
+            postings.add(id);
+        }
+    }
+
+    // Distinct lower-cased words of the text, in order of first appearance
+    static String[] split(String text) {
+        String[] found = new String[4];
+        int count = 0;
+        int length = text.length();
+        for (int start = 0; start < length; ) {
+            if (!Character.isLetterOrDigit(text.charAt(start))) {
+                start++;
+                continue;
+            }
+            int end = start + 1;
+            while (end < length && Character.isLetterOrDigit(text.charAt(end))) {
+                end++;
+            }
+            String word = text.substring(start, end).toLowerCase(Locale.ROOT);
+            if (indexOf(found, count, word) < 0) {
+                if (count == found.length) {
+                    found = Arrays.copyOf(found, count * 2);
+                }
+                found[count++] = word;
+            }
+            start = end;
+        }
+        return Arrays.copyOf(found, count);
+    }
+
+    private static int indexOf(String[] words, int count, String word) {
+        for (int i = 0; i < count; i++) {
+            if (words[i].equals(word)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Union of the postings of every index word the query word matches
+    private long[] matchingIds(String queryWord, Match match) {
+        switch (match) {
+            case EXACT:
+                Postings postings = words.get(queryWord);
+                return postings == null ? NO_IDS : postings.ids();
+            case PREFIX:
+                String[] sorted = sortedWords();
+                List<Postings> prefixed = new ArrayList<>();
+                for (int i = firstAtOrAfter(sorted, queryWord); i < sorted.length && sorted[i].startsWith(queryWord); i++) {
+                    prefixed.add(words.get(sorted[i]));
+                }
+                return union(prefixed);
+            default:
+                int maxEdits = queryWord.length() >= 8 ? 2 : 1;
+                List<Postings> similar = new ArrayList<>();
+                for (Map.Entry<String, Postings> word : words.entrySet()) {
+                    if (withinEdits(queryWord, word.getKey(), maxEdits)) {
+                        similar.add(word.getValue());
+                    }
+                }
+                return union(similar);
+        }
+    }
+
+    // Sorted lazily, and synchronized because searches run under a read lock only
+    private synchronized String[] sortedWords() {
+        if (sortedWords == null) {
+            sortedWords = words.keySet().toArray(new String[0]);
+            Arrays.sort(sortedWords);
+        }
+        return sortedWords;
+    }
+
+    private static int firstAtOrAfter(String[] sorted, String word) {
+        int position = Arrays.binarySearch(sorted, word);
+        return position >= 0 ? position : -position - 1;
+    }
+
+    private static long[] union(List<Postings> matched) {
+        if (matched.size() == 1) {
+            return matched.get(0).ids();
+        }
+        int total = 0;
+        for (Postings postings : matched) {
+            total += postings.count;
+        }
+        long[] ids = new long[total];
+        int length = 0;
+        for (Postings postings : matched) {
+            System.arraycopy(postings.ids(), 0, ids, length, postings.count);
+            length += postings.count;
+        }
+        Arrays.sort(ids);
+        int distinct = 0;
+        for (int i = 0; i < length; i++) {
+            if (distinct == 0 || ids[i] != ids[distinct - 1]) {
+                ids[distinct++] = ids[i];
+            }
+        }
+        return Arrays.copyOf(ids, distinct);
+    }
+
+    private static long[] intersect(long[] ids1, long[] ids2) {
+        long[] both = new long[Math.min(ids1.length, ids2.length)];
+        int length = 0;
+        for (int i = 0, j = 0; i < ids1.length && j < ids2.length; ) {
+            if (ids1[i] < ids2[j]) {
+                i++;
+            } else if (ids1[i] > ids2[j]) {
+                j++;
+            } else {
+                both[length++] = ids1[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(both, length);
+    }
+
+    // Levenshtein distance <= maxEdits, computed one row at a time and abandoned
+    // as soon as every cell of a row exceeds the limit
+    static boolean withinEdits(String a, String b, int maxEdits) {
+        if (Math.abs(a.length() - b.length()) > maxEdits) {
+            return false;
+        }
+        int[] previous = new int[b.length() + 1];
+        int[] current = new int[b.length() + 1];
+        for (int j = 0; j <= b.length(); j++) {
+            previous[j] = j;
+        }
+        for (int i = 1; i <= a.length(); i++) {
+            current[0] = i;
+            int rowMin = i;
+            for (int j = 1; j <= b.length(); j++) {
+                int substitution = previous[j - 1] + (a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1);
+                current[j] = Math.min(substitution, Math.min(previous[j], current[j - 1]) + 1);
+                rowMin = Math.min(rowMin, current[j]);
+            }
+            if (rowMin > maxEdits) {
+                return false;
+            }
+            int[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+        return previous[b.length()] <= maxEdits;
+    }
+}
@@ -0,0 +1,137 @@
+// Conversions between yyyy-MM-dd text and days since 1970-01-01 without going
+// through Date, Calendar or SimpleDateFormat (proleptic Gregorian calendar).
+final class EpochDays {
+    // Returned by parse for text that is not a valid date
+    static final int INVALID = Integer.MIN_VALUE;
+
+    private EpochDays() {
+    }
+
+    // Parses y-M-d with 1-4 digit year and 1-2 digit month/day
+    public static int parse(byte[] buffer, int start, int end) {
+        int i = start;
+        int year = 0;
+        int digits = 0;
+        for (; i < end && buffer[i] != '-'; i++, digits++) {
+            int d = buffer[i] - '0';
+            if (d < 0 || d > 9 || digits == 4) {
+                return INVALID;
+            }
+            year = year * 10 + d;
+        }
+        if (digits == 0 || i == end) {
+            return INVALID;
+        }
+        int month = 0;
+        digits = 0;
+        for (i++; i < end && buffer[i] != '-'; i++, digits++) {
+            int d = buffer[i] - '0';
+            if (d < 0 || d > 9 || digits == 2) {
+                return INVALID;
+            }
+            month = month * 10 + d;
+        }
+        if (digits == 0 || i == end) {
+            return INVALID;
+        }
+        int day = 0;
+        digits = 0;
+        for (i++; i < end; i++, digits++) {
+            int d = buffer[i] - '0';
+            if (d < 0 || d > 9 || digits == 2) {
+                return INVALID;
+            }
+            day = day * 10 + d;
+        }
+        if (digits == 0 || month < 1 || month > 12 || day < 1 || day > lengthOfMonth(year, month)) {
+            return INVALID;
+        }
+        return of(year, month, day);
+    }
+
+    public static int parse(CharSequence text) {
+        int length = text.length();
+        byte[] buffer = new byte[length];
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            buffer[i] = c < 128 ? (byte) c : (byte) '?';
+        }
+        return parse(buffer, 0, length);
+    }
+
+    public static int of(int year, int month, int day) {
+        // Days-from-civil: shift the year to start in March so Feb 29 is the last day
+        int y = month <= 2 ? year - 1 : year;
+        int era = Math.floorDiv(y, 400);
+        int yearOfEra = y - era * 400;
+        int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    // Appends the day as yyyy-MM-dd
+    public static StringBuilder appendTo(StringBuilder builder, int epochDay) {
+        int z = epochDay + 719468;
+        int era = Math.floorDiv(z, 146097);
+        int dayOfEra = z - era * 146097;
+        int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        int mp = (5 * dayOfYear + 2) / 153;
+        int day = dayOfYear - (153 * mp + 2) / 5 + 1;
+        int month = mp < 10 ? mp + 3 : mp - 9;
+        int year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+
+        if (year >= 0 && year < 1000) {
+            builder.append(year < 10 ? "000" : year < 100 ? "00" : "0");
+        }
+        builder.append(year).append('-');
+        if (month < 10) {
+            builder.append('0');
+        }
+        builder.append(month).append('-');
+        if (day < 10) {
+            builder.append('0');
+        }
+        return builder.append(day);
+    }
+
+    // Months since year 0: year * 12 + month - 1
+    public static int monthIndex(int epochDay) {
+        int z = epochDay + 719468;
+        int era = Math.floorDiv(z, 146097);
+        int dayOfEra = z - era * 146097;
+        int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        int mp = (5 * dayOfYear + 2) / 153;
+        int month = mp < 10 ? mp + 3 : mp - 9;
+        int year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+        return year * 12 + month - 1;
+    }
+
+    public static int firstDayOfMonth(int monthIndex) {
+        return of(Math.floorDiv(monthIndex, 12), Math.floorMod(monthIndex, 12) + 1, 1);
+    }
+
+    // ISO day of the week: 1 for Monday to 7 for Sunday
+    public static int dayOfWeek(int epochDay) {
+        return Math.floorMod(epochDay + 3, 7) + 1;
+    }
+
+    public static String format(int epochDay) {
+        return appendTo(new StringBuilder(10), epochDay).toString();
+    }
+
+    private static int lengthOfMonth(int year, int month) {
+        switch (month) {
+            case 2:
+                return (year % 4 == 0 && (year % 100 != 0 || year % 400 == 0)) ? 29 : 28;
+            case 4:
+            case 6:
+            case 9:
+            case 11:
+                return 30;
+            default:
+                return 31;
+        }
+    }
+}
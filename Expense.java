@@ -0,0 +1,39 @@
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+class Expense {
+    private String description;
+    private Date date;
+    private String category;
+    private long amountPaise;
+    
+
+    public Expense(String description, Date date, String category, long amountPaise) {
+        this.description = description;
+        this.date = date;
+        this.category = category;
+        this.amountPaise = amountPaise;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    public Date getDate() {
+        return date;
+    }
+
+    public String getCategory() {
+        return category;
+    }
+
+    public long getAmountPaise() {
+        return amountPaise;
+    }
+
+    @Override
+    public String toString() {
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
+        return description + " (" + category + ") - Date: " + dateFormat.format(date) + ", Amount: RS " + Money.format(amountPaise);
+    }
+}
@@ -0,0 +1,426 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+// Rollups of the expense store by category at day, month and year granularity,
+// plus the grand total, kept in step with every add and delete so that reports
+// never rescan the ledger. Running totals are answered by the shown ExpenseView.
+//
+// One rollup can be written out (see LedgerPreview); reading it back derives the
+// coarser ones from its buckets instead of from every row.
+class ExpenseAggregates {
+    private static final Metrics.Histogram WRITE_TOTALS_TIME = Metrics.histogram("totals.write");
+    private static final Metrics.Counter BYTES_WRITTEN = Metrics.counter("bytes.written");
+    private static final String TOTALS_HEADER = "# totals ";
+
+    enum Granularity {
+        DAY, MONTH, YEAR;
+
+        int bucket(int epochDay) {
+            switch (this) {
+                case DAY:
+                    return epochDay;
+                case MONTH:
+                    return EpochDays.monthIndex(epochDay);
+                default:
+                    return Math.floorDiv(EpochDays.monthIndex(epochDay), 12);
+            }
+        }
+
+        int firstDay(int bucket) {
+            switch (this) {
+                case DAY:
+                    return bucket;
+                case MONTH:
+                    return EpochDays.firstDayOfMonth(bucket);
+                default:
+                    return EpochDays.firstDayOfMonth(bucket * 12);
+            }
+        }
+
+        // yyyy-MM-dd, yyyy-MM or yyyy
+        String label(int bucket) {
+            String date = EpochDays.format(firstDay(bucket));
+            return this == DAY ? date : date.substring(0, this == MONTH ? 7 : 4);
+        }
+    }
+
+    private static class Total {
+        long amountPaise;
+        int count;
+    }
+
+    // 12 bytes each, so at most 3 MB
+    private static final int MAX_GRID_CELLS = 1 << 18;
+
+    // granularity -> category -> bucket -> total
+    private final Map<Granularity, Map<String, TreeMap<Integer, Total>>> rollups = new EnumMap<>(Granularity.class);
+    private long grandTotalPaise;
+
+    ExpenseAggregates() {
+        for (Granularity granularity : Granularity.values()) {
+            rollups.put(granularity, new HashMap<>());
+        }
+    }
+
+    // Recomputes everything, e.g. after loading: rows are summed by day, and the
+    // month and year rollups are derived from the day buckets
+    public void rebuild(ExpenseStore expenses) {
+        clear();
+        Map<String, TreeMap<Integer, Total>> days = rollups.get(Granularity.DAY);
+        int size = expenses.size();
+        int minDay = Integer.MAX_VALUE;
+        int maxDay = Integer.MIN_VALUE;
+        for (int row = 0; row < size; row++) {
+            minDay = Math.min(minDay, expenses.getEpochDay(row));
+            maxDay = Math.max(maxDay, expenses.getEpochDay(row));
+        }
+        long cells = ((long) maxDay - minDay + 1) * expenses.getCategoryCount();
+        if (size > 0 && cells <= Math.min(size + 4096L, MAX_GRID_CELLS)) {
+            // Dense (category, day) grid: one array update per row, then one map
+            // entry per non-empty cell. Capped, so it never costs more than the
+            // store it sums.
+            int span = maxDay - minDay + 1;
+            long[] amounts = new long[(int) cells];
+            int[] counts = new int[(int) cells];
+            for (int row = 0; row < size; row++) {
+                int cell = expenses.getCategoryId(row) * span + expenses.getEpochDay(row) - minDay;
+                amounts[cell] += expenses.getAmountPaise(row);
+                counts[cell]++;
+            }
+            for (int cell = 0; cell < cells; cell++) {
+                if (counts[cell] > 0) {
+                    add(days, expenses.getCategoryName(cell / span), minDay + cell % span, amounts[cell], counts[cell]);
+                    grandTotalPaise += amounts[cell];
+                }
+            }
+        } else {
+            for (int row = 0; row < size; row++) {
+                long amountPaise = expenses.getAmountPaise(row);
+                add(days, expenses.getCategory(row), expenses.getEpochDay(row), amountPaise, 1);
+                grandTotalPaise += amountPaise;
+            }
+        }
+        deriveFrom(Granularity.DAY);
+    }
+
+    // Rows from..to-1 were appended to the store, e.g. one imported batch
+    public void rowsAdded(ExpenseStore expenses, int from, int to) {
+        for (int row = from; row < to; row++) {
+            addTotal(expenses.getCategory(row), expenses.getEpochDay(row), expenses.getAmountPaise(row), 1);
+        }
+    }
+
+    // The expense was appended to the end of the store
+    public void expenseAdded(Expense expense) {
+        addTotal(expense.getCategory(), ExpenseStore.toEpochDay(expense.getDate()), expense.getAmountPaise(), 1);
+    }
+
+    // The expense was removed from the store
+    public void expenseRemoved(Expense expense) {
+        addTotal(expense.getCategory(), ExpenseStore.toEpochDay(expense.getDate()), -expense.getAmountPaise(), -1);
+    }
+
+    public long getGrandTotalPaise() {
+        return grandTotalPaise;
+    }
+
+    // category -> yyyy-MM-dd -> total in paise
+    public Map<String, Map<String, Long>> getCategoryDateTotals() {
+        return getTotals(Granularity.DAY);
+    }
+
+    // category -> bucket label -> total in paise, categories by name and buckets in
+    // date order
+    public Map<String, Map<String, Long>> getTotals(Granularity granularity) {
+        return getTotals(granularity, Integer.MIN_VALUE, Integer.MAX_VALUE);
+    }
+
+    // As getTotals, for the buckets that overlap fromDay..toDay; Integer.MIN_VALUE
+    // and MAX_VALUE leave that end open
+    public Map<String, Map<String, Long>> getTotals(Granularity granularity, int fromDay, int toDay) {
+        Map<String, Map<String, Long>> result = new TreeMap<>();
+        int fromBucket = fromDay == Integer.MIN_VALUE ? Integer.MIN_VALUE : granularity.bucket(fromDay);
+        int toBucket = toDay == Integer.MAX_VALUE ? Integer.MAX_VALUE : granularity.bucket(toDay);
+        for (Map.Entry<String, TreeMap<Integer, Total>> category : rollups.get(granularity).entrySet()) {
+            Map<String, Long> buckets = new LinkedHashMap<>();
+            for (Map.Entry<Integer, Total> bucket : category.getValue().subMap(fromBucket, true, toBucket, true)
+                    .entrySet()) {
+                buckets.put(granularity.label(bucket.getKey()), bucket.getValue().amountPaise);
+            }
+            if (!buckets.isEmpty()) {
+                result.put(category.getKey(), buckets);
+            }
+        }
+        return result;
+    }
+
+    // Total of the category (every category if null) over fromDay..toDay inclusive.
+    // Whole years and months come from their rollups, so the cost depends on the
+    // number of years spanned, not on the number of expenses.
+    public long getTotal(String category, int fromDay, int toDay) {
+        if (category == null) {
+            long total = 0;
+            for (String name : rollups.get(Granularity.DAY).keySet()) {
+                total += getTotal(name, fromDay, toDay);
+            }
+            return total;
+        }
+        TreeMap<Integer, Total> days = rollups.get(Granularity.DAY).get(category);
+        if (days == null || days.isEmpty()) {
+            return 0;
+        }
+        // Clamp the range to the days that have expenses
+        int day = Math.max(fromDay, days.firstKey());
+        int lastDay = Math.min(toDay, days.lastKey());
+        TreeMap<Integer, Total> months = rollups.get(Granularity.MONTH).get(category);
+        TreeMap<Integer, Total> years = rollups.get(Granularity.YEAR).get(category);
+        long total = 0;
+        while (day <= lastDay) {
+            int month = EpochDays.monthIndex(day);
+            int nextMonth = EpochDays.firstDayOfMonth(month + 1);
+            int nextYear = EpochDays.firstDayOfMonth((Math.floorDiv(month, 12) + 1) * 12);
+            if (day == EpochDays.firstDayOfMonth(month) && Math.floorMod(month, 12) == 0 && nextYear - 1 <= lastDay) {
+                total += amount(years, Math.floorDiv(month, 12));
+                day = nextYear;
+            } else if (day == EpochDays.firstDayOfMonth(month) && nextMonth - 1 <= lastDay) {
+                total += amount(months, month);
+                day = nextMonth;
+            } else {
+                // Partial month: the day buckets up to its end
+                int end = Math.min(lastDay, nextMonth - 1);
+                for (Total dayTotal : days.subMap(day, true, end, true).values()) {
+                    total += dayTotal.amountPaise;
+                }
+                day = end + 1;
+            }
+        }
+        return total;
+    }
+
+    // Writes the grand total and the rollup at the given granularity; readFrom()
+    // derives the coarser ones
+    public void writeTo(DataOutputStream out, Granularity granularity) throws IOException {
+        out.writeLong(grandTotalPaise);
+        Map<String, TreeMap<Integer, Total>> rollup = rollups.get(granularity);
+        out.writeInt(rollup.size());
+        for (Map.Entry<String, TreeMap<Integer, Total>> category : rollup.entrySet()) {
+            out.writeUTF(category.getKey());
+            out.writeInt(category.getValue().size());
+            for (Map.Entry<Integer, Total> bucket : category.getValue().entrySet()) {
+                out.writeInt(bucket.getKey());
+                out.writeLong(bucket.getValue().amountPaise);
+                out.writeInt(bucket.getValue().count);
+            }
+        }
+    }
+
+    // Replaces the contents with a rollup written by writeTo() at the same
+    // granularity. Finer granularities are left empty, so e.g. getTotal() needs
+    // the day rollup.
+    public void readFrom(DataInputStream in, Granularity granularity) throws IOException {
+        clear();
+        grandTotalPaise = in.readLong();
+        Map<String, TreeMap<Integer, Total>> rollup = rollups.get(granularity);
+        for (int categories = in.readInt(); categories > 0; categories--) {
+            String category = in.readUTF();
+            for (int buckets = in.readInt(); buckets > 0; buckets--) {
+                int bucket = in.readInt();
+                add(rollup, category, bucket, in.readLong(), in.readInt());
+            }
+        }
+        deriveFrom(granularity);
+    }
+
+    // Order-independent hash of every row's day, amount and category, so rollups
+    // saved before a compaction still match the reloaded rows
+    static long fingerprint(ExpenseStore expenses) {
+        long[] categoryHashes = new long[expenses.getCategoryCount()];
+        for (int id = 0; id < categoryHashes.length; id++) {
+            categoryHashes[id] = mix(expenses.getCategoryName(id).hashCode());
+        }
+        long hash = expenses.size();
+        for (int row = 0; row < expenses.size(); row++) {
+            hash += mix(mix(expenses.getEpochDay(row) * 0x9E3779B97F4A7C15L + expenses.getAmountPaise(row))
+                    + categoryHashes[expenses.getCategoryId(row)]);
+        }
+        return hash;
+    }
+
+    // The totals text shown under the expense table
+    public static String formatSummary(Map<String, Map<String, Long>> categoryDateTotals, long grandTotalPaise) {
+        StringBuilder totals = new StringBuilder("Total Amount for Each Category and Date:\n");
+        appendTotals(totals, categoryDateTotals);
+        totals.append("\nGrand Total: RS ");
+        return Money.appendTo(totals, grandTotalPaise).append('\n').toString();
+    }
+
+    // One line per category followed by its date totals
+    public static void appendTotals(StringBuilder totals, Map<String, Map<String, Long>> categoryDateTotals) {
+        for (Map.Entry<String, Map<String, Long>> categoryEntry : categoryDateTotals.entrySet()) {
+            totals.append(categoryEntry.getKey()).append('\n');
+            for (Map.Entry<String, Long> dateEntry : categoryEntry.getValue().entrySet()) {
+                totals.append("  ").append(dateEntry.getKey()).append(": RS ");
+                Money.appendTo(totals, dateEntry.getValue()).append('\n');
+            }
+        }
+    }
+
+    // Writes the totals as Category,Date,Amount lines ending in a grand total line,
+    // after a "# totals <hex> <length>" line holding their fingerprint and the
+    // length in chars of the rest of the file (see totalsFileMatches). Lines end
+    // in the platform's line separator throughout.
+    public static void writeTotals(String path, Map<String, Map<String, Long>> categoryDateTotals,
+                                   long grandTotalPaise) throws IOException {
+        long start = Metrics.start();
+        Path file = Paths.get(path);
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        String newLine = System.lineSeparator();
+        // Built first, as the header holds its length
+        StringBuilder body = new StringBuilder("Category,Date,Amount").append(newLine);
+        for (Map.Entry<String, Map<String, Long>> categoryEntry : categoryDateTotals.entrySet()) {
+            for (Map.Entry<String, Long> dateEntry : categoryEntry.getValue().entrySet()) {
+                body.append(categoryEntry.getKey()).append(',').append(dateEntry.getKey()).append(',');
+                Money.appendTo(body, dateEntry.getValue()).append(newLine);
+            }
+        }
+        Money.appendTo(body.append("Grand Total,, "), grandTotalPaise);
+        try (FileOutputStream out = new FileOutputStream(tmp.toFile());
+             BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(out))) {
+            writer.write(totalsHeader(categoryDateTotals, grandTotalPaise, body.length()));
+            writer.newLine();
+            writer.append(body);
+            writer.flush();
+            out.getChannel().force(true);
+        }
+        if (Metrics.ENABLED) {
+            BYTES_WRITTEN.add(Files.size(tmp));
+        }
+        Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        WRITE_TOTALS_TIME.recordSince(start);
+    }
+
+    // Whether the totals file at path was written from these totals, judged by its
+    // header line and the length of what follows it; false if it is missing,
+    // unreadable, truncated or has no header
+    public static boolean totalsFileMatches(String path, Map<String, Map<String, Long>> categoryDateTotals,
+                                            long grandTotalPaise) {
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(path), Charset.defaultCharset())) {
+            String first = reader.readLine();
+            int space = first == null ? -1 : first.lastIndexOf(' ');
+            if (space < 0) {
+                return false;
+            }
+            long length;
+            try {
+                length = Long.parseLong(first.substring(space + 1));
+            } catch (NumberFormatException e) {
+                return false;
+            }
+            if (!first.equals(totalsHeader(categoryDateTotals, grandTotalPaise, length))) {
+                return false;
+            }
+            char[] buffer = new char[8192];
+            long read = 0;
+            for (int n = reader.read(buffer); n >= 0 && read <= length; n = reader.read(buffer)) {
+                read += n;
+            }
+            return read == length;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static String totalsHeader(Map<String, Map<String, Long>> categoryDateTotals, long grandTotalPaise,
+                                       long bodyLength) {
+        return TOTALS_HEADER + Long.toHexString(totalsFingerprint(categoryDateTotals, grandTotalPaise)) + ' '
+                + bodyLength;
+    }
+
+    // Hash of every category, date and total in order, and the grand total
+    private static long totalsFingerprint(Map<String, Map<String, Long>> categoryDateTotals,
+                                          long grandTotalPaise) {
+        long hash = mix(grandTotalPaise);
+        for (Map.Entry<String, Map<String, Long>> categoryEntry : categoryDateTotals.entrySet()) {
+            hash = mix(hash + categoryEntry.getKey().hashCode());
+            for (Map.Entry<String, Long> dateEntry : categoryEntry.getValue().entrySet()) {
+                hash = mix(hash * 31 + dateEntry.getKey().hashCode());
+                hash = mix(hash + dateEntry.getValue());
+            }
+        }
+        return hash;
+    }
+
+    private void clear() {
+        for (Map<String, TreeMap<Integer, Total>> rollup : rollups.values()) {
+            rollup.clear();
+        }
+        grandTotalPaise = 0;
+    }
+
+    // Adds (or with negative values, takes away) one expense at every granularity
+    private void addTotal(String category, int epochDay, long amountPaise, int count) {
+        for (Granularity granularity : Granularity.values()) {
+            add(rollups.get(granularity), category, granularity.bucket(epochDay), amountPaise, count);
+        }
+        grandTotalPaise += amountPaise;
+    }
+
+    // Fills the granularities coarser than source from its buckets
+    private void deriveFrom(Granularity source) {
+        for (Map.Entry<String, TreeMap<Integer, Total>> category : rollups.get(source).entrySet()) {
+            for (Map.Entry<Integer, Total> bucket : category.getValue().entrySet()) {
+                int firstDay = source.firstDay(bucket.getKey());
+                for (Granularity granularity : Granularity.values()) {
+                    if (granularity.compareTo(source) > 0) {
+                        add(rollups.get(granularity), category.getKey(), granularity.bucket(firstDay),
+                                bucket.getValue().amountPaise, bucket.getValue().count);
+                    }
+                }
+            }
+        }
+    }
+
+    // Empty buckets and categories are dropped, so the rollups only hold what exists
+    private static void add(Map<String, TreeMap<Integer, Total>> rollup, String category, int bucket,
+                            long amountPaise, int count) {
+        TreeMap<Integer, Total> buckets = rollup.computeIfAbsent(category, k -> new TreeMap<>());
+        Total total = buckets.computeIfAbsent(bucket, k -> new Total());
+        total.amountPaise += amountPaise;
+        total.count += count;
+        if (total.count <= 0) {
+            buckets.remove(bucket);
+            if (buckets.isEmpty()) {
+                rollup.remove(category);
+            }
+        }
+    }
+
+    private static long amount(NavigableMap<Integer, Total> buckets, int bucket) {
+        Total total = buckets == null ? null : buckets.get(bucket);
+        return total == null ? 0 : total.amountPaise;
+    }
+
+    private static long mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        value *= 0xc4ceb9f53a6c0b2bL;
+        return value ^ (value >>> 33);
+    }
+}
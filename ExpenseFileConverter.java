@@ -0,0 +1,25 @@
+import java.io.IOException;
+
+// Converts a user's expenses file between the CSV and binary formats in place,
+// folding any pending journal into the new snapshot. Run while the app is closed.
+// Usage: java ExpenseFileConverter (to-binary|to-csv) expenses_<user>
+public class ExpenseFileConverter {
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2 || !(args[0].equals("to-binary") || args[0].equals("to-csv"))) {
+            System.err.println("Usage: java ExpenseFileConverter (to-binary|to-csv) expenses_<user>");
+            System.exit(2);
+        }
+        boolean binary = args[0].equals("to-binary");
+
+        ExpenseJournal journal = new ExpenseJournal(args[1]);
+        ExpenseStore expenses = new ExpenseStore();
+        journal.load(expenses);
+        if (journal.getMalformedLines() > 0) {
+            System.err.println("Skipped " + journal.getMalformedLines() + " malformed line(s)");
+        }
+        journal.rewriteSnapshot(expenses, binary);
+        journal.close();
+        System.out.println("Wrote " + expenses.size() + " expenses to " + args[1]
+                + (binary ? " (binary)" : " (CSV)"));
+    }
+}
@@ -0,0 +1,179 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.LongConsumer;
+
+// Streaming parser for description,date,category,amount lines (and the "+row" /
+// "-row" journal records). Fields are split at the last three commas, so
+// descriptions written with commas in them still load. Works directly on a byte
+// buffer: dates are decoded to epoch days and amounts to paise without
+// intermediate Strings, and repeated descriptions and categories come from a
+// pool. Malformed lines are skipped and reported by line number instead of
+// aborting the load.
+class ExpenseFileParser {
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final int MAX_REPORTED_ERRORS = 100;
+    private static final int MAX_POOLED_STRINGS = 1 << 16;
+
+    interface RowHandler {
+        void row(byte op, String description, int epochDay, String category, long amountPaise);
+    }
+
+    private final boolean journal;
+    private final ByteStringPool strings = new ByteStringPool(MAX_POOLED_STRINGS);
+    private final List<String> errorReasons = new ArrayList<>();
+    private final long[] errorLines = new long[MAX_REPORTED_ERRORS];
+    private long firstLineNumber = 1;
+    private long lineNumber;
+    private long malformedLines;
+    private long completeBytes;
+
+    // A journal prefixes each line with an op byte and only trusts newline-terminated lines
+    public ExpenseFileParser(boolean journal) {
+        this.journal = journal;
+    }
+
+    // Reads bytes into the parser's buffer, returning -1 at the end (InputStream::read fits)
+    interface ByteSource {
+        int read(byte[] buffer, int offset, int length) throws IOException;
+    }
+
+    public void parse(InputStream in, RowHandler handler) throws IOException {
+        parse(in::read, handler, null);
+    }
+
+    // Parses a slice of a (typically memory-mapped) buffer from its position to its limit
+    public void parse(ByteBuffer source, RowHandler handler, LongConsumer bytesRead) throws IOException {
+        parse((buffer, offset, length) -> {
+            if (!source.hasRemaining()) {
+                return -1;
+            }
+            int count = Math.min(length, source.remaining());
+            source.get(buffer, offset, count);
+            return count;
+        }, handler, bytesRead);
+    }
+
+    public void parse(ByteSource in, RowHandler handler, LongConsumer bytesRead) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int length = 0;
+        long consumedBytes = 0;
+        int read;
+        while ((read = in.read(buffer, length, buffer.length - length)) != -1) {
+            length += read;
+            int start = 0;
+            for (int i = 0; i < length; i++) {
+                if (buffer[i] == '\n') {
+                    parseLine(buffer, start, i, handler);
+                    start = i + 1;
+                }
+            }
+            consumedBytes += start;
+            completeBytes = consumedBytes;
+            // Keep the partial last line; grow only when one line fills the buffer
+            length -= start;
+            System.arraycopy(buffer, start, buffer, 0, length);
+            if (length == buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+            if (bytesRead != null) {
+                bytesRead.accept(read);
+            }
+        }
+        if (length > 0 && !journal) {
+            parseLine(buffer, 0, length, handler);
+        }
+    }
+
+    public long getLineCount() {
+        return lineNumber;
+    }
+
+    public long getMalformedLines() {
+        return malformedLines;
+    }
+
+    // Line number of the first line parsed, for parsers that start mid-file
+    public void setFirstLineNumber(long firstLineNumber) {
+        this.firstLineNumber = firstLineNumber;
+    }
+
+    // First few malformed lines as "line N: reason"
+    public List<String> getErrors() {
+        List<String> errors = new ArrayList<>(errorReasons.size());
+        for (int i = 0; i < errorReasons.size(); i++) {
+            errors.add("line " + (firstLineNumber + errorLines[i] - 1) + ": " + errorReasons.get(i));
+        }
+        return errors;
+    }
+
+    // Offset just past the last newline; a journal is truncated here to drop a torn write
+    public long getCompleteBytes() {
+        return completeBytes;
+    }
+
+    private void parseLine(byte[] buffer, int start, int end, RowHandler handler) {
+        lineNumber++;
+        if (end > start && buffer[end - 1] == '\r') {
+            end--;
+        }
+        if (start == end) {
+            return;
+        }
+
+        byte op = '+';
+        if (journal) {
+            op = buffer[start++];
+            if (op != '+' && op != '-') {
+                malformed("unknown journal operation");
+                return;
+            }
+        }
+
+        // Fields are taken from the right so a description may contain commas
+        int comma3 = lastIndexOf(buffer, ',', start, end);
+        int comma2 = lastIndexOf(buffer, ',', start, comma3);
+        int comma1 = lastIndexOf(buffer, ',', start, comma2);
+        if (comma1 < 0) {
+            malformed("expected description,date,category,amount");
+            return;
+        }
+
+        int epochDay = EpochDays.parse(buffer, comma1 + 1, comma2);
+        if (epochDay == EpochDays.INVALID) {
+            malformed("invalid date");
+            return;
+        }
+        long amountPaise;
+        try {
+            amountPaise = Money.parse(buffer, comma3 + 1, end);
+        } catch (NumberFormatException e) {
+            malformed("invalid amount");
+            return;
+        }
+        String description = strings.get(buffer, start, comma1);
+        String category = strings.get(buffer, comma2 + 1, comma3);
+        handler.row(op, description, epochDay, category, amountPaise);
+    }
+
+    private void malformed(String reason) {
+        malformedLines++;
+        if (errorReasons.size() < MAX_REPORTED_ERRORS) {
+            errorLines[errorReasons.size()] = lineNumber;
+            errorReasons.add(reason);
+        }
+    }
+
+    // Last index of c in [from, to), or -1; also -1 when to is already -1
+    private static int lastIndexOf(byte[] buffer, char c, int from, int to) {
+        for (int i = to - 1; i >= from; i--) {
+            if (buffer[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
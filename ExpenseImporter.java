@@ -0,0 +1,253 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Bulk import of a statement file (description,date,category,amount lines, as in
+// an expenses file; the category may be left empty) into a ledger. Three stages
+// run concurrently, connected by small bounded queues, so a slow stage holds the
+// ones before it back instead of letting batches pile up in memory:
+//
+//   parse     reads the file and splits it into batches of BATCH_ROWS rows
+//   validate  drops rows with an empty description or a zero amount and fills
+//             in missing categories from the categorizer
+//   append    adds each batch to the ledger under one write lock
+//
+// The aggregates are updated once per batch and the ledger file is written once,
+// as a new snapshot, after the last batch. If a stage fails, the later batches
+// are dropped; the ones already appended stay and are written with the snapshot.
+class ExpenseImporter {
+    static final int BATCH_ROWS = 8192;
+    static final String UNCATEGORIZED = "Uncategorized";
+
+    private static final int QUEUED_BATCHES = 4;
+    private static final int MAX_REPORTED_ERRORS = 100;
+    private static final Batch END = new Batch();
+    private static final Metrics.Histogram IMPORT_TIME = Metrics.histogram("import");
+    private static final Metrics.Counter ROWS_IMPORTED = Metrics.counter("rows.imported");
+
+    // Picks a category for a row whose category field is empty; null if none fits.
+    // CategoryRules is the rule-based one.
+    interface Categorizer {
+        String categorize(String description, long amountPaise);
+    }
+
+    private static final class Batch {
+        final ExpenseStore rows = new ExpenseStore();
+        // Line number of each parsed row, grown as rows are read
+        long[] lines = new long[0];
+
+        void add(long line, String description, int epochDay, String category, long amountPaise) {
+            int row = rows.size();
+            if (row == lines.length) {
+                lines = Arrays.copyOf(lines, Math.min(BATCH_ROWS, Math.max(16, row * 2)));
+            }
+            lines[row] = line;
+            rows.add(description, epochDay, category, amountPaise);
+        }
+    }
+
+    // Counts and the first few rejected lines of a finished import
+    static final class Result {
+        private final long imported;
+        private final long rejected;
+        private final List<String> errors;
+
+        Result(long imported, long rejected, List<String> errors) {
+            this.imported = imported;
+            this.rejected = rejected;
+            this.errors = errors;
+        }
+
+        public long getImported() {
+            return imported;
+        }
+
+        public long getRejected() {
+            return rejected;
+        }
+
+        public List<String> getErrors() {
+            return errors;
+        }
+    }
+
+    private final LedgerEngine ledger;
+    private final Categorizer categorizer;
+    private volatile Runnable batchListener;
+
+    public ExpenseImporter(LedgerEngine ledger, Categorizer categorizer) {
+        this.ledger = ledger;
+        this.categorizer = categorizer;
+    }
+
+    // Called on the append thread after each batch is in the ledger, e.g. to post
+    // a table refresh to the EDT
+    public void setBatchListener(Runnable batchListener) {
+        this.batchListener = batchListener;
+    }
+
+    // Imports the file and waits until the ledger's snapshot is written. Runs the
+    // append stage on the calling thread; progress is reported in bytes parsed.
+    public Result importFile(Path file, ParallelExpenseLoader.Progress progress) throws IOException {
+        long start = Metrics.start();
+        BlockingQueue<Batch> parsed = new ArrayBlockingQueue<>(QUEUED_BATCHES);
+        BlockingQueue<Batch> validated = new ArrayBlockingQueue<>(QUEUED_BATCHES);
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        ExpenseFileParser parser = new ExpenseFileParser(false);
+        List<String> errors = new ArrayList<>();
+        long[] rejected = new long[1];
+        long total = Files.size(file);
+
+        Thread parseStage = new Thread(() -> {
+            try (InputStream in = Files.newInputStream(file)) {
+                Batch[] batch = {new Batch()};
+                long[] done = new long[1];
+                parser.parse(in::read, (op, description, epochDay, category, amountPaise) -> {
+                    Batch current = batch[0];
+                    current.add(parser.getLineCount(), description, epochDay, category, amountPaise);
+                    if (current.rows.size() == BATCH_ROWS) {
+                        put(parsed, current);
+                        batch[0] = new Batch();
+                    }
+                }, bytes -> {
+                    done[0] += bytes;
+                    if (progress != null) {
+                        progress.update(done[0], total);
+                    }
+                });
+                if (batch[0].rows.size() > 0) {
+                    put(parsed, batch[0]);
+                }
+            } catch (Exception e) {
+                failure.compareAndSet(null, e);
+            } finally {
+                putEnd(parsed);
+            }
+        }, "expense-import-parse");
+
+        Thread validateStage = new Thread(() -> {
+            try {
+                // Keeps draining after a failure so the parse stage never blocks
+                for (Batch batch = parsed.take(); batch != END; batch = parsed.take()) {
+                    if (failure.get() == null) {
+                        try {
+                            Batch valid = validate(batch, rejected, errors);
+                            if (valid.rows.size() > 0) {
+                                put(validated, valid);
+                            }
+                        } catch (RuntimeException e) {
+                            failure.compareAndSet(null, e);
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                putEnd(validated);
+            }
+        }, "expense-import-validate");
+
+        parseStage.setDaemon(true);
+        validateStage.setDaemon(true);
+        parseStage.start();
+        validateStage.start();
+
+        long imported = 0;
+        try {
+            for (Batch batch = validated.take(); batch != END; batch = validated.take()) {
+                if (failure.get() == null) {
+                    try {
+                        ledger.importRows(batch.rows);
+                        imported += batch.rows.size();
+                        Runnable listener = batchListener;
+                        if (listener != null) {
+                            listener.run();
+                        }
+                    } catch (RuntimeException e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            }
+            parseStage.join();
+            validateStage.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            parseStage.interrupt();
+            validateStage.interrupt();
+            throw new IOException("Import interrupted", e);
+        } finally {
+            if (imported > 0) {
+                ledger.commitImport();
+            }
+        }
+        ledger.flush();
+        IMPORT_TIME.recordSince(start);
+        ROWS_IMPORTED.add(imported);
+        if (failure.get() != null) {
+            Exception e = failure.get();
+            throw e instanceof IOException ? (IOException) e : new IOException(e);
+        }
+
+        synchronized (errors) {
+            List<String> allErrors = new ArrayList<>(parser.getErrors());
+            allErrors.addAll(errors);
+            return new Result(imported, rejected[0] + parser.getMalformedLines(),
+                    allErrors.subList(0, Math.min(allErrors.size(), MAX_REPORTED_ERRORS)));
+        }
+    }
+
+    // Copies the rows that pass into a new batch, categorizing as it goes
+    private Batch validate(Batch batch, long[] rejected, List<String> errors) {
+        Batch valid = new Batch();
+        ExpenseStore rows = batch.rows;
+        for (int row = 0; row < rows.size(); row++) {
+            String description = rows.getDescription(row);
+            long amountPaise = rows.getAmountPaise(row);
+            String reason = description.trim().isEmpty() ? "empty description"
+                    : amountPaise == 0 ? "zero amount" : null;
+            if (reason != null) {
+                synchronized (errors) {
+                    rejected[0]++;
+                    if (errors.size() < MAX_REPORTED_ERRORS) {
+                        errors.add("line " + batch.lines[row] + ": " + reason);
+                    }
+                }
+                continue;
+            }
+            String category = rows.getCategory(row);
+            if (category.trim().isEmpty()) {
+                category = categorizer == null ? null : categorizer.categorize(description, amountPaise);
+                if (category == null) {
+                    category = UNCATEGORIZED;
+                }
+            }
+            valid.rows.add(description, rows.getEpochDay(row), category, amountPaise);
+        }
+        return valid;
+    }
+
+    private static void put(BlockingQueue<Batch> queue, Batch batch) {
+        try {
+            queue.put(batch);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Import interrupted", e);
+        }
+    }
+
+    // The end marker must arrive even after a failure, or the next stage waits forever
+    private static void putEnd(BlockingQueue<Batch> queue) {
+        try {
+            queue.put(END);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,175 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+// Secondary indexes over an ExpenseStore's rows, kept in step by the store:
+//
+//   categoryGroups case-folded category name -> group id (hash lookup)
+//   categoryDates  rows ordered by (category group, epoch day)
+//   dates          rows ordered by epoch day
+//   amounts        rows ordered by amount
+//   categories     rows ordered by category name
+//   added          rows ordered by id, i.e. the order they were added
+//   descriptions   description words -> row ids (DescriptionIndex)
+//
+// Equal keys are ordered by id. A category, category + date range, date range
+// or amount range query is one or two binary searches in the matching index,
+// and dates, amounts and categories double as the maintained sort orders.
+// Comparisons read primitive columns only; category names are compared once, as
+// dictionary ranks. Each ordered index is built the first time it is used.
+class ExpenseIndexes {
+    private final ExpenseStore store;
+    private final Map<String, Integer> categoryGroups = new HashMap<>();
+    private int[] categoryGroupIds = new int[0];
+    private int[] categoryRanks = new int[0];
+
+    private final SortedRowIndex categoryDates;
+    private final SortedRowIndex dates;
+    private final SortedRowIndex amounts;
+    private final SortedRowIndex categories;
+    private final SortedRowIndex added;
+    private final SortedRowIndex[] all;
+    private DescriptionIndex descriptions;
+
+    ExpenseIndexes(ExpenseStore store) {
+        this.store = store;
+        categoryDates = new SortedRowIndex((row1, row2) -> {
+            int result = Integer.compare(categoryGroup(row1), categoryGroup(row2));
+            if (result == 0) {
+                result = Integer.compare(store.getEpochDay(row1), store.getEpochDay(row2));
+            }
+            return result != 0 ? result : compareIds(row1, row2);
+        }, store::getAmountPaise);
+        dates = new SortedRowIndex((row1, row2) -> {
+            int result = Integer.compare(store.getEpochDay(row1), store.getEpochDay(row2));
+            return result != 0 ? result : compareIds(row1, row2);
+        }, store::getAmountPaise);
+        amounts = new SortedRowIndex((row1, row2) -> {
+            int result = Long.compare(store.getAmountPaise(row1), store.getAmountPaise(row2));
+            return result != 0 ? result : compareIds(row1, row2);
+        }, store::getAmountPaise);
+        categories = new SortedRowIndex((row1, row2) -> {
+            int result = Integer.compare(categoryRanks[store.getCategoryId(row1)],
+                    categoryRanks[store.getCategoryId(row2)]);
+            return result != 0 ? result : compareIds(row1, row2);
+        }, store::getAmountPaise);
+        added = new SortedRowIndex(this::compareIds, store::getAmountPaise);
+        all = new SortedRowIndex[]{categoryDates, dates, amounts, categories, added};
+        descriptions = new DescriptionIndex(store);
+        groupNewCategories();
+    }
+
+    SortedRowIndex categoryDates() {
+        return built(categoryDates);
+    }
+
+    SortedRowIndex dates() {
+        return built(dates);
+    }
+
+    SortedRowIndex amounts() {
+        return built(amounts);
+    }
+
+    SortedRowIndex added() {
+        return built(added);
+    }
+
+    // Synchronized like built(), so concurrent searches build it only once
+    synchronized DescriptionIndex descriptions() {
+        if (!descriptions.isBuilt()) {
+            descriptions.build(added());
+        }
+        return descriptions;
+    }
+
+    SortedRowIndex order(ExpenseStore.SortOrder order) {
+        switch (order) {
+            case DATE:
+                return dates();
+            case AMOUNT:
+                return amounts();
+            default:
+                return built(categories);
+        }
+    }
+
+    // Group id shared by every spelling of the category, or -1 if no row has it
+    int categoryGroup(String category) {
+        Integer group = categoryGroups.get(fold(category));
+        return group == null ? -1 : group;
+    }
+
+    int categoryGroup(int row) {
+        return categoryGroupIds[store.getCategoryId(row)];
+    }
+
+    void rowAdded(int row) {
+        groupNewCategories();
+        for (SortedRowIndex index : all) {
+            index.insert(row);
+        }
+        descriptions.rowAdded(row);
+    }
+
+    // Called before the row's slot is reused
+    void rowRemoving(int row) {
+        for (SortedRowIndex index : all) {
+            index.remove(row);
+        }
+        if (descriptions.rowRemoved()) {
+            descriptions = new DescriptionIndex(store);
+        }
+    }
+
+    // The row at from now lives at to, with the same values and id
+    void rowMoved(int from, int to) {
+        for (SortedRowIndex index : all) {
+            index.replace(from, to);
+        }
+    }
+
+    // Synchronized so that concurrent readers build an index only once
+    private synchronized SortedRowIndex built(SortedRowIndex index) {
+        if (!index.isBuilt()) {
+            index.build(store.size());
+        }
+        return index;
+    }
+
+    private int compareIds(int row1, int row2) {
+        return Long.compare(store.getId(row1), store.getId(row2));
+    }
+
+    private void groupNewCategories() {
+        int known = categoryGroupIds.length;
+        if (known == store.getCategoryCount()) {
+            return;
+        }
+        categoryGroupIds = Arrays.copyOf(categoryGroupIds, store.getCategoryCount());
+        for (int id = known; id < categoryGroupIds.length; id++) {
+            categoryGroupIds[id] = categoryGroups.computeIfAbsent(fold(store.getCategoryName(id)),
+                    name -> categoryGroups.size());
+        }
+        rankCategories();
+    }
+
+    // Ranks the dictionary by name; existing ranks keep their relative order, so
+    // the category index stays sorted when a new name is ranked in between
+    private void rankCategories() {
+        Integer[] byName = new Integer[store.getCategoryCount()];
+        for (int id = 0; id < byName.length; id++) {
+            byName[id] = id;
+        }
+        Arrays.sort(byName, (id1, id2) -> store.getCategoryName(id1).compareTo(store.getCategoryName(id2)));
+        categoryRanks = new int[byName.length];
+        for (int rank = 0; rank < byName.length; rank++) {
+            categoryRanks[byName[rank]] = rank;
+        }
+    }
+
+    private static String fold(String category) {
+        return category.toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,486 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+// Write-ahead journal for a user's expenses file.
+//
+// The snapshot (expenses_<user>) is either the original
+// description,date,category,amount text or the BinaryExpenseFormat, detected by
+// its header. Every add/delete is appended to expenses_<user>.journal as a
+// single "+row" or "-row" line and made durable by sync(), so a save costs O(1)
+// regardless of ledger size.
+// Once the journal grows past a fraction of the ledger it is folded into a new
+// snapshot on a background thread.
+//
+// Compaction steps (each rename is atomic):
+//   1. journal -> journal.old, new empty journal opened for further appends
+//   2. snapshot + journal.old written to .tmp and fsynced
+//   3. .tmp -> .compacted      (commit point)
+//   4. journal.old deleted, .compacted -> snapshot
+// load() finishes or rolls back whichever step a crash interrupted.
+class ExpenseJournal {
+    private static final String JOURNAL_SUFFIX = ".journal";
+    private static final String OLD_JOURNAL_SUFFIX = ".journal.old";
+    private static final String TMP_SUFFIX = ".tmp";
+    private static final String COMPACTED_SUFFIX = ".compacted";
+    private static final int MIN_COMPACT_RECORDS = 1000;
+    // New ledgers use the binary snapshot format when -Dexpensetracker.binary=true
+    private static final boolean BINARY_BY_DEFAULT = Boolean.getBoolean("expensetracker.binary");
+
+    private static final Metrics.Histogram LOAD_TIME = Metrics.histogram("journal.load");
+    private static final Metrics.Histogram APPEND_TIME = Metrics.histogram("journal.append");
+    private static final Metrics.Histogram SYNC_TIME = Metrics.histogram("journal.sync");
+    private static final Metrics.Histogram SNAPSHOT_TIME = Metrics.histogram("snapshot.write");
+    private static final Metrics.Counter ROWS_PARSED = Metrics.counter("rows.parsed");
+    private static final Metrics.Counter PARSE_ERRORS = Metrics.counter("parse.errors");
+    private static final Metrics.Counter BYTES_WRITTEN = Metrics.counter("bytes.written");
+    private static final Logger LOG = Logger.getLogger("ExpenseTracker.journal");
+
+    private static final ExecutorService COMPACTOR = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "expense-journal-compactor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Identifies a row for journal deletes; identical rows are interchangeable
+    private static final class RowKey {
+        final String description;
+        final int epochDay;
+        final String category;
+        final long amountPaise;
+
+        RowKey(String description, int epochDay, String category, long amountPaise) {
+            this.description = description;
+            this.epochDay = epochDay;
+            this.category = category;
+            this.amountPaise = amountPaise;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof RowKey)) {
+                return false;
+            }
+            RowKey other = (RowKey) o;
+            return epochDay == other.epochDay && amountPaise == other.amountPaise
+                    && description.equals(other.description) && category.equals(other.category);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(description, epochDay, category, amountPaise);
+        }
+    }
+
+    private final File snapshotFile;
+    private final File journalFile;
+    private final File oldJournalFile;
+    private final File tmpFile;
+    private final File compactedFile;
+
+    private FileOutputStream journalOut;
+    private int journalRecords;
+    private boolean compacting;
+    // Journal size at which to retry a compaction whose rotation failed
+    private long retryAtRecords;
+    private boolean binarySnapshot = BINARY_BY_DEFAULT;
+    private long malformedLines;
+    private final List<String> errors = new ArrayList<>();
+
+    public ExpenseJournal(String snapshotPath) {
+        snapshotFile = new File(snapshotPath);
+        journalFile = new File(snapshotPath + JOURNAL_SUFFIX);
+        oldJournalFile = new File(snapshotPath + OLD_JOURNAL_SUFFIX);
+        tmpFile = new File(snapshotPath + TMP_SUFFIX);
+        compactedFile = new File(snapshotPath + COMPACTED_SUFFIX);
+    }
+
+    // Sizes and modification times of the ledger's files, hashed; changes whenever
+    // one of them is written, replaced or removed
+    static long fileStamp(String snapshotPath) {
+        long stamp = 17;
+        for (String suffix : new String[]{"", JOURNAL_SUFFIX, OLD_JOURNAL_SUFFIX, COMPACTED_SUFFIX}) {
+            File file = new File(snapshotPath + suffix);
+            stamp = (stamp * 31 + file.length()) * 31 + file.lastModified();
+        }
+        return stamp;
+    }
+
+    public void load(ExpenseStore expenses) throws IOException {
+        load(expenses, null);
+    }
+
+    // Recovers from an interrupted compaction, then replays snapshot + journal into
+    // the store. Malformed lines are skipped; see getMalformedLines()/getErrors().
+    // Large snapshots are loaded in parallel and report progress in bytes.
+    public synchronized void load(ExpenseStore expenses, ParallelExpenseLoader.Progress progress) throws IOException {
+        long start = Metrics.start();
+        int rowsBefore = expenses.size();
+        recover();
+        malformedLines = 0;
+        errors.clear();
+        if (snapshotFile.exists()) {
+            binarySnapshot = BinaryExpenseFormat.isBinary(snapshotFile.toPath());
+        }
+
+        readSnapshot(expenses, progress);
+        if (oldJournalFile.exists()) {
+            // Crashed before the commit point: redo the compaction of journal.old
+            replayJournal(oldJournalFile, expenses);
+            writeSnapshot(expenses);
+        }
+        journalRecords = replayJournal(journalFile, expenses);
+        LOAD_TIME.recordSince(start);
+        ROWS_PARSED.add(expenses.size() - rowsBefore);
+        PARSE_ERRORS.add(malformedLines);
+    }
+
+    // Folds the journal into a new snapshot in the given format (CSV or binary)
+    public synchronized void rewriteSnapshot(ExpenseStore expenses, boolean binary) throws IOException {
+        rotateJournal();
+        binarySnapshot = binary;
+        writeSnapshot(expenses);
+    }
+
+    public synchronized boolean isBinarySnapshot() {
+        return binarySnapshot;
+    }
+
+    public synchronized long getMalformedLines() {
+        return malformedLines;
+    }
+
+    public synchronized List<String> getErrors() {
+        return new ArrayList<>(errors);
+    }
+
+    // Appends one add record per expense in a single write
+    public synchronized void recordAdds(List<Expense> expenses) throws IOException {
+        appendRecords('+', expenses);
+    }
+
+    // Appends one delete record per expense in a single write
+    public synchronized void recordDeletes(List<Expense> expenses) throws IOException {
+        appendRecords('-', expenses);
+    }
+
+    // Forces appended records to disk. Callers batch several appends per sync.
+    public synchronized void sync() throws IOException {
+        if (journalOut != null) {
+            long start = Metrics.start();
+            journalOut.getChannel().force(false);
+            SYNC_TIME.recordSince(start);
+        }
+    }
+
+    // True once the journal is large relative to the ledger; compacting then keeps
+    // the amortized cost of each save constant.
+    public synchronized boolean needsCompaction(int liveRows) {
+        return !compacting && journalRecords >= Math.max(MIN_COMPACT_RECORDS, liveRows / 4)
+                && journalRecords >= retryAtRecords;
+    }
+
+    // Starts a new journal and writes the snapshot on a background thread. The copy
+    // must hold exactly the rows recorded so far. If the snapshot cannot be
+    // written, onFailure is told on the compactor thread; journal.old then stays
+    // behind and is folded in by the next rotation.
+    public synchronized void compact(ExpenseStore copy, Consumer<Exception> onFailure) throws IOException {
+        if (compacting) {
+            return;
+        }
+        try {
+            rotateJournal();
+        } catch (IOException e) {
+            // Not again on every record: wait until the journal has doubled
+            retryAtRecords = 2 * journalRecords;
+            throw e;
+        }
+        retryAtRecords = 0;
+        boolean binary = binarySnapshot;
+        compacting = true;
+        COMPACTOR.execute(() -> {
+            try {
+                writeSnapshot(copy, binary);
+            } catch (IOException e) {
+                onFailure.accept(e);
+            } finally {
+                synchronized (this) {
+                    compacting = false;
+                    notifyAll();
+                }
+            }
+        });
+    }
+
+    // Closes the journal file after any running compaction has finished
+    public synchronized void close() {
+        while (compacting) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        if (journalOut != null) {
+            try {
+                journalOut.close();
+            } catch (IOException e) {
+                Metrics.failed(e);
+            }
+            journalOut = null;
+        }
+    }
+
+    // Appends description,yyyy-MM-dd,category,amount
+    static StringBuilder appendRow(StringBuilder row, String description, int epochDay, String category,
+                                   long amountPaise) {
+        row.append(description).append(',');
+        EpochDays.appendTo(row, epochDay).append(',');
+        row.append(category).append(',');
+        return Money.appendTo(row, amountPaise);
+    }
+
+    private void appendRecords(char op, List<Expense> expenses) throws IOException {
+        if (journalOut == null) {
+            journalOut = new FileOutputStream(journalFile, true);
+        }
+        long start = Metrics.start();
+        StringBuilder records = new StringBuilder();
+        for (Expense expense : expenses) {
+            records.append(op);
+            appendRow(records, expense.getDescription(), ExpenseStore.toEpochDay(expense.getDate()),
+                    expense.getCategory(), expense.getAmountPaise()).append('\n');
+        }
+        byte[] bytes = records.toString().getBytes(StandardCharsets.UTF_8);
+        journalOut.write(bytes);
+        journalRecords += expenses.size();
+        APPEND_TIME.recordSince(start);
+        BYTES_WRITTEN.add(bytes.length);
+    }
+
+    private void rotateJournal() throws IOException {
+        close();
+        foldOldJournal();
+        if (journalFile.exists()) {
+            Files.move(journalFile.toPath(), oldJournalFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        }
+        journalRecords = 0;
+    }
+
+    // A compaction that failed leaves journal.old behind, with records the
+    // snapshot lacks. Moving the journal over it would lose them, so they are
+    // first folded into a new snapshot, as load() does after a crash; if that
+    // fails too, the rotation fails and the journal keeps growing instead.
+    private void foldOldJournal() throws IOException {
+        if (!oldJournalFile.exists()) {
+            return;
+        }
+        long malformedBefore = malformedLines;
+        int errorsBefore = errors.size();
+        ExpenseStore folded = new ExpenseStore();
+        readSnapshot(folded, null);
+        replayJournal(oldJournalFile, folded);
+        malformedLines = malformedBefore;
+        errors.subList(errorsBefore, errors.size()).clear();
+        writeSnapshot(folded);
+    }
+
+    private void writeSnapshot(ExpenseStore expenses) throws IOException {
+        writeSnapshot(expenses, binarySnapshot);
+    }
+
+    private void writeSnapshot(ExpenseStore expenses, boolean binary) throws IOException {
+        long start = Metrics.start();
+        writeSnapshotFile(expenses, binary);
+        if (Metrics.ENABLED) {
+            BYTES_WRITTEN.add(tmpFile.length());
+        }
+        commitSnapshot();
+        SNAPSHOT_TIME.recordSince(start);
+    }
+
+    private void writeSnapshotFile(ExpenseStore expenses, boolean binary) throws IOException {
+        if (binary) {
+            try (FileOutputStream out = new FileOutputStream(tmpFile)) {
+                BinaryExpenseFormat.write(expenses, out);
+                out.getChannel().force(true);
+            }
+            return;
+        }
+        try (FileOutputStream out = new FileOutputStream(tmpFile);
+             BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8))) {
+            StringBuilder row = new StringBuilder(128);
+            char[] chars = new char[128];
+            for (int i = 0; i < expenses.size(); i++) {
+                row.setLength(0);
+                appendRow(row, expenses.getDescription(i), expenses.getEpochDay(i), expenses.getCategory(i),
+                        expenses.getAmountPaise(i)).append('\n');
+                if (chars.length < row.length()) {
+                    chars = new char[row.length() * 2];
+                }
+                row.getChars(0, row.length(), chars, 0);
+                writer.write(chars, 0, row.length());
+            }
+            writer.flush();
+            out.getChannel().force(true);
+        }
+    }
+
+    private void commitSnapshot() throws IOException {
+        Files.move(tmpFile.toPath(), compactedFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        Files.deleteIfExists(oldJournalFile.toPath());
+        Files.move(compactedFile.toPath(), snapshotFile.toPath(),
+                StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private void recover() throws IOException {
+        if (compactedFile.exists()) {
+            // Crashed after the commit point: the compacted file already covers journal.old
+            Files.deleteIfExists(oldJournalFile.toPath());
+            Files.move(compactedFile.toPath(), snapshotFile.toPath(),
+                    StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+        // A leftover .tmp never reached the commit point and may be incomplete
+        Files.deleteIfExists(tmpFile.toPath());
+    }
+
+    private void readSnapshot(ExpenseStore expenses, ParallelExpenseLoader.Progress progress) throws IOException {
+        if (!snapshotFile.exists()) {
+            return;
+        }
+        if (binarySnapshot) {
+            try {
+                BinaryExpenseFormat.read(snapshotFile.toPath(), expenses);
+                return;
+            } catch (BinaryExpenseFormat.ChecksumMismatchException e) {
+                // Perhaps a text ledger that only looks binary; a damaged binary
+                // file yields no rows as text and still fails the open
+                int rowsBefore = expenses.size();
+                readTextSnapshot(expenses, progress);
+                if (expenses.size() == rowsBefore) {
+                    throw e;
+                }
+                LOG.warning(snapshotFile.getName() + ": read as text, as it failed the binary checksum");
+                binarySnapshot = false;
+                return;
+            }
+        }
+        readTextSnapshot(expenses, progress);
+    }
+
+    private void readTextSnapshot(ExpenseStore expenses, ParallelExpenseLoader.Progress progress)
+            throws IOException {
+        if (snapshotFile.length() >= ParallelExpenseLoader.MIN_PARALLEL_BYTES) {
+            ParallelExpenseLoader loader = ParallelExpenseLoader.load(snapshotFile.toPath(), expenses, progress);
+            malformedLines += loader.getMalformedLines();
+            for (String error : loader.getErrors()) {
+                reportError(snapshotFile, error);
+            }
+            logSkipped(snapshotFile, loader.getMalformedLines());
+            return;
+        }
+        ExpenseFileParser parser = new ExpenseFileParser(false);
+        try (InputStream in = new FileInputStream(snapshotFile)) {
+            parser.parse(in, (op, description, epochDay, category, amountPaise) ->
+                    expenses.add(description, epochDay, category, amountPaise));
+        }
+        reportErrors(snapshotFile, parser);
+    }
+
+    // Applies the journal to the store in order; a delete removes one matching row.
+    private int replayJournal(File file, ExpenseStore expenses) throws IOException {
+        if (!file.exists()) {
+            return 0;
+        }
+        Map<RowKey, Integer> deletions = new HashMap<>();
+        ExpenseFileParser parser = new ExpenseFileParser(true);
+        try (InputStream in = new FileInputStream(file)) {
+            parser.parse(in, (op, description, epochDay, category, amountPaise) -> {
+                if (op == '+') {
+                    expenses.add(description, epochDay, category, amountPaise);
+                } else {
+                    deletions.merge(new RowKey(description, epochDay, category, amountPaise), 1, Integer::sum);
+                }
+            });
+        }
+        reportErrors(file, parser);
+        // Only newline-terminated records count; drop a torn final write so the
+        // next append starts on a clean line
+        if (parser.getCompleteBytes() < file.length()) {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(parser.getCompleteBytes());
+            }
+        }
+        if (!deletions.isEmpty()) {
+            applyDeletions(expenses, deletions);
+        }
+        return (int) parser.getLineCount();
+    }
+
+    // Identical rows are interchangeable, so deleting the earliest copies gives the
+    // same result as replaying each delete in place. Amounts are checked first so
+    // a key is only built for likely matches.
+    private static void applyDeletions(ExpenseStore expenses, Map<RowKey, Integer> deletions) {
+        long[] amounts = new long[deletions.size()];
+        int i = 0;
+        for (RowKey key : deletions.keySet()) {
+            amounts[i++] = key.amountPaise;
+        }
+        Arrays.sort(amounts);
+
+        BitSet removed = new BitSet(expenses.size());
+        for (int row = 0; row < expenses.size() && !deletions.isEmpty(); row++) {
+            if (Arrays.binarySearch(amounts, expenses.getAmountPaise(row)) < 0) {
+                continue;
+            }
+            RowKey key = new RowKey(expenses.getDescription(row), expenses.getEpochDay(row),
+                    expenses.getCategory(row), expenses.getAmountPaise(row));
+            Integer pending = deletions.get(key);
+            if (pending == null) {
+                continue;
+            }
+            if (pending == 1) {
+                deletions.remove(key);
+            } else {
+                deletions.put(key, pending - 1);
+            }
+            removed.set(row);
+        }
+        expenses.removeRows(removed);
+    }
+
+    private void reportErrors(File file, ExpenseFileParser parser) {
+        malformedLines += parser.getMalformedLines();
+        for (String error : parser.getErrors()) {
+            reportError(file, error);
+        }
+        logSkipped(file, parser.getMalformedLines());
+    }
+
+    // Kept for getErrors(); the lines themselves are only logged at FINE
+    private void reportError(File file, String error) {
+        String message = file.getName() + ": " + error;
+        LOG.fine(message);
+        errors.add(message);
+    }
+
+    // One warning per file, however many lines it skipped
+    private static void logSkipped(File file, long lines) {
+        if (lines > 0) {
+            LOG.warning(file.getName() + ": skipped " + lines + " malformed line(s)");
+        }
+    }
+}
@@ -0,0 +1,394 @@
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+// Struct-of-arrays expense storage. Each row is an epoch day, an amount in paise,
+// a category id into a shared dictionary and an interned description, so a row
+// costs a few primitive slots instead of an Expense, a Date and two Strings.
+//
+// It is also a List<Expense>: get(i) materializes a short-lived Expense, which
+// keeps the journal and other list consumers working unchanged. The List view
+// cannot remove: use removeRow, removeById or removeRows, which do not keep
+// slot order.
+//
+// Every row gets a unique id, assigned in increasing order as rows are added.
+// Removal moves the last row into the freed slot, so slots are unordered: the
+// display order (id order, or a sort order) and queries come from ExpenseViews
+// over secondary indexes, which are built on first use and then maintained on
+// every add and remove.
+class ExpenseStore extends AbstractList<Expense> implements RandomAccess {
+    private static final int INITIAL_CAPACITY = 16;
+
+    private int[] epochDays = new int[INITIAL_CAPACITY];
+    private long[] amountsPaise = new long[INITIAL_CAPACITY];
+    private int[] categoryIds = new int[INITIAL_CAPACITY];
+    private String[] descriptions = new String[INITIAL_CAPACITY];
+    private long[] ids = new long[INITIAL_CAPACITY];
+    private int size;
+    private long nextId = 1;
+
+    private final List<String> categoryNames = new ArrayList<>();
+    private final Map<String, Integer> categoryIdsByName = new HashMap<>();
+    private final Map<String, String> internedDescriptions = new HashMap<>();
+    private ExpenseIndexes indexes;
+    private LongIntHashMap rowsById;
+
+    // Compares two row indexes using primitive columns
+    interface RowComparator {
+        int compare(int row1, int row2);
+    }
+
+    enum SortOrder {
+        DATE, AMOUNT, CATEGORY
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public Expense get(int row) {
+        checkIndex(row);
+        return new Expense(descriptions[row], toDate(epochDays[row]), categoryNames.get(categoryIds[row]),
+                amountsPaise[row]);
+    }
+
+    @Override
+    public boolean add(Expense expense) {
+        add(expense.getDescription(), toEpochDay(expense.getDate()), expense.getCategory(),
+                expense.getAmountPaise());
+        return true;
+    }
+
+    public void add(String description, int epochDay, String category, long amountPaise) {
+        addRow(internedDescriptions.computeIfAbsent(description, d -> d), epochDay, categoryId(category), amountPaise);
+    }
+
+    // Bulk-load path: the caller already deduplicated the description and resolved
+    // the category through categoryId()
+    void addRow(String description, int epochDay, int categoryId, long amountPaise) {
+        ensureCapacity(size + 1);
+        epochDays[size] = epochDay;
+        amountsPaise[size] = amountPaise;
+        categoryIds[size] = categoryId;
+        descriptions[size] = description;
+        ids[size] = nextId++;
+        if (rowsById != null) {
+            rowsById.put(ids[size], size);
+        }
+        size++;
+        modCount++;
+        if (indexes != null) {
+            indexes.rowAdded(size - 1);
+        }
+    }
+
+    // Appends every row of another store, remapping its category ids into this
+    // dictionary. A batch that is large next to the store drops the indexes, which
+    // are rebuilt in one sort on next use, instead of inserting into them row by row.
+    public void addAll(ExpenseStore other) {
+        int[] categoryMap = new int[other.categoryNames.size()];
+        for (int id = 0; id < categoryMap.length; id++) {
+            categoryMap[id] = categoryId(other.categoryNames.get(id));
+        }
+        ensureCapacity(size + other.size);
+        System.arraycopy(other.epochDays, 0, epochDays, size, other.size);
+        System.arraycopy(other.amountsPaise, 0, amountsPaise, size, other.size);
+        System.arraycopy(other.descriptions, 0, descriptions, size, other.size);
+        for (int row = 0; row < other.size; row++) {
+            categoryIds[size + row] = categoryMap[other.categoryIds[row]];
+            ids[size + row] = nextId++;
+            if (rowsById != null) {
+                rowsById.put(ids[size + row], size + row);
+            }
+        }
+        int first = size;
+        size += other.size;
+        modCount++;
+        if (other.size > first / 8) {
+            indexes = null;
+        }
+        if (indexes != null) {
+            for (int row = first; row < size; row++) {
+                indexes.rowAdded(row);
+            }
+        }
+    }
+
+    // Removes the row in O(1) by moving the last row into its slot. Unlike
+    // List.remove, later rows do not shift down one by one: only the last row
+    // changes slot.
+    public Expense removeRow(int row) {
+        Expense removed = get(row);
+        int last = size - 1;
+        if (indexes != null) {
+            indexes.rowRemoving(row);
+        }
+        rowsById().remove(ids[row]);
+        if (row != last) {
+            epochDays[row] = epochDays[last];
+            amountsPaise[row] = amountsPaise[last];
+            categoryIds[row] = categoryIds[last];
+            descriptions[row] = descriptions[last];
+            ids[row] = ids[last];
+            rowsById.put(ids[row], row);
+            if (indexes != null) {
+                indexes.rowMoved(last, row);
+            }
+        }
+        descriptions[last] = null;
+        size--;
+        modCount++;
+        return removed;
+    }
+
+    // Removes the expense with the given id; null if there is none
+    public Expense removeById(long id) {
+        int row = getRow(id);
+        return row < 0 ? null : removeRow(row);
+    }
+
+    public long getId(int row) {
+        checkIndex(row);
+        return ids[row];
+    }
+
+    // Slot currently holding the expense with the given id, or -1. Ids start at 1
+    // and rows are appended, so until rows are removed the slot is id - 1; that
+    // guess is checked before the hash lookup.
+    public int getRow(long id) {
+        if (id > 0 && id <= size && ids[(int) id - 1] == id) {
+            return (int) id - 1;
+        }
+        return rowsById().get(id);
+    }
+
+    // Removes every row whose bit is set in one linear pass
+    public void removeRows(BitSet rows) {
+        int kept = 0;
+        for (int row = 0; row < size; row++) {
+            if (!rows.get(row)) {
+                epochDays[kept] = epochDays[row];
+                amountsPaise[kept] = amountsPaise[row];
+                categoryIds[kept] = categoryIds[row];
+                descriptions[kept] = descriptions[row];
+                ids[kept] = ids[row];
+                kept++;
+            }
+        }
+        Arrays.fill(descriptions, kept, size, null);
+        size = kept;
+        modCount++;
+        indexes = null;
+        rowsById = null;
+    }
+
+    // Independent copy with the rows in id (insertion) order, e.g. for writing a
+    // snapshot off the EDT that reloads in the order the user added them
+    public ExpenseStore copy() {
+        int[] order = new int[size];
+        for (int row = 0; row < size; row++) {
+            order[row] = row;
+        }
+        // Only rows moved by removals are out of place, so this is close to linear
+        mergeSort(order, new int[size], 0, size, (row1, row2) -> Long.compare(ids[row1], ids[row2]));
+        ExpenseStore copy = new ExpenseStore();
+        copy.ensureCapacity(size);
+        for (int i = 0; i < size; i++) {
+            int row = order[i];
+            copy.epochDays[i] = epochDays[row];
+            copy.amountsPaise[i] = amountsPaise[row];
+            copy.categoryIds[i] = categoryIds[row];
+            copy.descriptions[i] = descriptions[row];
+            copy.ids[i] = ids[row];
+        }
+        copy.size = size;
+        copy.nextId = nextId;
+        copy.categoryNames.addAll(categoryNames);
+        copy.categoryIdsByName.putAll(categoryIdsByName);
+        return copy;
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(descriptions, 0, size, null);
+        size = 0;
+        categoryNames.clear();
+        categoryIdsByName.clear();
+        internedDescriptions.clear();
+        indexes = null;
+        rowsById = null;
+        modCount++;
+    }
+
+    public int getEpochDay(int row) {
+        checkIndex(row);
+        return epochDays[row];
+    }
+
+    public long getAmountPaise(int row) {
+        checkIndex(row);
+        return amountsPaise[row];
+    }
+
+    public int getCategoryId(int row) {
+        checkIndex(row);
+        return categoryIds[row];
+    }
+
+    public String getCategory(int row) {
+        return categoryNames.get(getCategoryId(row));
+    }
+
+    public String getDescription(int row) {
+        checkIndex(row);
+        return descriptions[row];
+    }
+
+    public int getCategoryCount() {
+        return categoryNames.size();
+    }
+
+    public String getCategoryName(int categoryId) {
+        return categoryNames.get(categoryId);
+    }
+
+    // Every row, in the order it was added
+    public ExpenseView all() {
+        return new ExpenseView(this, ExpenseIndexes::added, null, null, null);
+    }
+
+    // Every row in the given order; switching orders costs nothing once the indexes exist
+    public ExpenseView sorted(SortOrder order) {
+        return new ExpenseView(this, index -> index.order(order), null, null, null);
+    }
+
+    // Rows whose category matches, ignoring case, ordered by date
+    public ExpenseView byCategory(String category) {
+        return byCategory(category, Integer.MIN_VALUE, Integer.MAX_VALUE);
+    }
+
+    // Rows of the category (ignoring case) dated fromDay..toDay inclusive, ordered by date
+    public ExpenseView byCategory(String category, int fromDay, int toDay) {
+        return new ExpenseView(this, ExpenseIndexes::categoryDates,
+                row -> compareCategoryDay(row, category, fromDay) < 0,
+                row -> compareCategoryDay(row, category, toDay) <= 0, null);
+    }
+
+    // Rows dated fromDay..toDay inclusive, ordered by date
+    public ExpenseView byDateRange(int fromDay, int toDay) {
+        return new ExpenseView(this, ExpenseIndexes::dates,
+                row -> epochDays[row] < fromDay,
+                row -> epochDays[row] <= toDay, null);
+    }
+
+    // Rows with amounts minPaise..maxPaise inclusive, ordered by amount
+    public ExpenseView byAmountRange(long minPaise, long maxPaise) {
+        return new ExpenseView(this, ExpenseIndexes::amounts,
+                row -> amountsPaise[row] < minPaise,
+                row -> amountsPaise[row] <= maxPaise, null);
+    }
+
+    // Rows whose description has every word of the query, matched as given (see
+    // DescriptionIndex), in the order added
+    public ExpenseView search(String query, DescriptionIndex.Match match) {
+        return new ExpenseView(this, index -> index.descriptions().search(query, match), null);
+    }
+
+    static int toEpochDay(Date date) {
+        return (int) date.toInstant().atZone(ZoneId.systemDefault()).toLocalDate().toEpochDay();
+    }
+
+    static Date toDate(int epochDay) {
+        return Date.from(LocalDate.ofEpochDay(epochDay).atStartOfDay(ZoneId.systemDefault()).toInstant());
+    }
+
+    static void mergeSort(int[] rows, int[] buffer, int from, int to, RowComparator comparator) {
+        if (to - from < 2) {
+            return;
+        }
+        int mid = (from + to) >>> 1;
+        mergeSort(rows, buffer, from, mid, comparator);
+        mergeSort(rows, buffer, mid, to, comparator);
+        if (comparator.compare(rows[mid - 1], rows[mid]) <= 0) {
+            return;
+        }
+        System.arraycopy(rows, from, buffer, from, to - from);
+        int left = from;
+        int right = mid;
+        for (int i = from; i < to; i++) {
+            if (right >= to || (left < mid && comparator.compare(buffer[left], buffer[right]) <= 0)) {
+                rows[i] = buffer[left++];
+            } else {
+                rows[i] = buffer[right++];
+            }
+        }
+    }
+
+    int getModCount() {
+        return modCount;
+    }
+
+    // Lazy state is created under the store's monitor, so concurrent readers
+    // (LedgerEngine's read lock) may trigger it
+    synchronized ExpenseIndexes indexes() {
+        if (indexes == null) {
+            indexes = new ExpenseIndexes(this);
+        }
+        return indexes;
+    }
+
+    // Built on the first lookup by id, then maintained
+    private synchronized LongIntHashMap rowsById() {
+        if (rowsById == null) {
+            rowsById = new LongIntHashMap();
+            for (int row = 0; row < size; row++) {
+                rowsById.put(ids[row], row);
+            }
+        }
+        return rowsById;
+    }
+
+    private int compareCategoryDay(int row, String category, int epochDay) {
+        ExpenseIndexes index = indexes();
+        int result = Integer.compare(index.categoryGroup(row), index.categoryGroup(category));
+        return result != 0 ? result : Integer.compare(epochDays[row], epochDay);
+    }
+
+    // Dictionary id for the category, adding it if new
+    int categoryId(String category) {
+        Integer id = categoryIdsByName.get(category);
+        if (id == null) {
+            id = categoryNames.size();
+            categoryNames.add(category);
+            categoryIdsByName.put(category, id);
+        }
+        return id;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > epochDays.length) {
+            int newCapacity = Math.max(capacity, epochDays.length * 2);
+            epochDays = Arrays.copyOf(epochDays, newCapacity);
+            amountsPaise = Arrays.copyOf(amountsPaise, newCapacity);
+            categoryIds = Arrays.copyOf(categoryIds, newCapacity);
+            descriptions = Arrays.copyOf(descriptions, newCapacity);
+            ids = Arrays.copyOf(ids, newCapacity);
+        }
+    }
+
+    private void checkIndex(int row) {
+        if (row < 0 || row >= size) {
+            throw new IndexOutOfBoundsException("Row: " + row + ", Size: " + size);
+        }
+    }
+}
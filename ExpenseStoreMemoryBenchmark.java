@@ -0,0 +1,58 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+// Compares the retained heap of ArrayList<Expense> against ExpenseStore.
+// Usage: java ExpenseStoreMemoryBenchmark [rows]
+public class ExpenseStoreMemoryBenchmark {
+    private static final String[] CATEGORIES = {"Food", "Rent", "Travel", "Bills", "Shopping", "Health"};
+    private static final String[] DESCRIPTIONS = {"Groceries", "Monthly rent", "Bus ticket", "Electricity",
+            "Clothes", "Pharmacy", "Coffee", "Dinner out"};
+
+    public static void main(String[] args) {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+
+        long baseline = usedHeap();
+        List<Expense> list = new ArrayList<>();
+        fill(rows, list);
+        long listBytes = usedHeap() - baseline;
+        System.out.println("ArrayList<Expense>: " + list.size() + " rows");
+        list = null;
+
+        baseline = usedHeap();
+        ExpenseStore store = new ExpenseStore();
+        fill(rows, store);
+        long storeBytes = usedHeap() - baseline;
+        System.out.println("ExpenseStore:       " + store.size() + " rows");
+
+        System.out.printf("ArrayList<Expense>: %,d bytes (%.1f bytes/row)%n", listBytes, (double) listBytes / rows);
+        System.out.printf("ExpenseStore:       %,d bytes (%.1f bytes/row)%n", storeBytes, (double) storeBytes / rows);
+    }
+
+    // The same pseudo-random ledger for both containers; descriptions are built
+    // per row, as they would be when parsed from a file
+    private static void fill(int rows, List<Expense> target) {
+        Random random = new Random(42);
+        long startDay = 18_000;
+        for (int i = 0; i < rows; i++) {
+            String description = new String(DESCRIPTIONS[random.nextInt(DESCRIPTIONS.length)]);
+            String category = new String(CATEGORIES[random.nextInt(CATEGORIES.length)]);
+            int epochDay = (int) (startDay + random.nextInt(3650));
+            long amountPaise = random.nextInt(1_000_000);
+            target.add(new Expense(description, ExpenseStore.toDate(epochDay), category, amountPaise));
+        }
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,88 @@
+import javax.swing.table.AbstractTableModel;
+import java.time.LocalDate;
+import java.util.function.Function;
+
+// Table model over a view of the expense store. JTable only asks for the cells it
+// paints, so formatting cost depends on the visible rows, not the ledger size.
+// Running totals come from the view's prefix sums. With a ledger set, cells are
+// read under its read lock, so another thread may write to it meanwhile. The row
+// count is the one taken at the last refresh() on the EDT, so JTable never sees
+// it change without an event; rows appended since show up at the next refresh.
+class ExpenseTableModel extends AbstractTableModel {
+    private static final long serialVersionUID = 1L;
+
+    private static final String[] COLUMNS = {"Description", "Category", "Date", "Amount", "Running Total"};
+
+    private ExpenseView expenses = new ExpenseStore().all();
+    private LedgerEngine ledger;
+    private int rowCount;
+
+    public void setExpenses(ExpenseView expenses) {
+        setExpenses(expenses, null);
+    }
+
+    // The view must be over the ledger's store
+    public void setExpenses(ExpenseView expenses, LedgerEngine ledger) {
+        this.expenses = expenses;
+        this.ledger = ledger;
+        refresh();
+    }
+
+    // Call on the EDT after the underlying list changed (add, delete, sort, or a
+    // batch appended on another thread)
+    public void refresh() {
+        rowCount = read(store -> expenses.size());
+        fireTableDataChanged();
+    }
+
+    public Expense getExpenseAt(int row) {
+        return read(store -> store.get(expenses.getRow(row)));
+    }
+
+    // Stable id of the expense behind a table row
+    public long getExpenseId(int row) {
+        return read(store -> store.getId(expenses.getRow(row)));
+    }
+
+    @Override
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    @Override
+    public int getColumnCount() {
+        return COLUMNS.length;
+    }
+
+    @Override
+    public String getColumnName(int column) {
+        return COLUMNS[column];
+    }
+
+    @Override
+    public Object getValueAt(int row, int column) {
+        return read(store -> getValueAt(store, row, column));
+    }
+
+    private Object getValueAt(ExpenseStore store, int row, int column) {
+        int storeRow = expenses.getRow(row);
+        switch (column) {
+            case 0:
+                return store.getDescription(storeRow);
+            case 1:
+                return store.getCategory(storeRow);
+            case 2:
+                return LocalDate.ofEpochDay(store.getEpochDay(storeRow)).toString();
+            case 3:
+                return "RS " + Money.format(store.getAmountPaise(storeRow));
+            case 4:
+                return "RS " + Money.format(expenses.getRunningTotal(row));
+            default:
+                return null;
+        }
+    }
+
+    private <T> T read(Function<ExpenseStore, T> query) {
+        return ledger == null ? query.apply(expenses.getStore()) : ledger.read(query);
+    }
+}
@@ -1,87 +1,66 @@
 import javax.swing.*;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.io.*;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
-import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 
-class Expense {
-    private String description;
-    private Date date;
-    private String category;
-    private double amount;
-    
-
-    public Expense(String description, Date date, String category, double amount) {
-        this.description = description;
-        this.date = date;
-        this.category = category;
-        this.amount = amount;
-    }
-
-    public String getDescription() {
-        return description;
-    }
-
-    public Date getDate() {
-        return date;
-    }
-
-    public String getCategory() {
-        return category;
-    }
-
-    public double getAmount() {
-        return amount;
-    }
-
-    public String getFormattedDescription() {
-        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
-        return description + " (" + category + ") - Date: " + dateFormat.format(date) + ", Amount: RS " + amount;
-    }
-
-    @Override
-    public String toString() {
-        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
-        return description + " (" + category + ") - Date: " + dateFormat.format(date) + ", Amount: RS " + amount;
-    }
-}
-
-class User {
-    private String username;
-    private String password;
-
-    public User(String username, String password) {
-        this.username = username;
-        this.password = password;
-    }
-
-    public String getUsername() {
-        return username;
-    }
-
-    public String getPassword() {
-        return password;
-    }
-}
-
 public class ExpenseTrackerApp {
     private JFrame frame;
     private JTextField usernameField, descriptionField, amountField, dateField, categoryField;
+    private JTextField filterCategoryField, filterFromField, filterToField, searchField;
     private JPasswordField passwordField;
-    private JTextArea expenseArea;
-    private ArrayList<Expense> expenses;
+    private JTable expenseTable;
+    private ExpenseTableModel expenseTableModel;
+    private JTextArea totalsArea;
+    private JProgressBar loadProgressBar;
+    // The signed-in user's ledger. Edits are made on the EDT and imports on the
+    // persistence thread; the table reads it under the ledger's read lock.
+    private volatile LedgerEngine ledger;
+    // Totals and newest rows saved at the last close, shown while the ledger loads
+    private LedgerPreview preview;
+    private ExpenseView visibleExpenses;
+    private ExpenseStore.SortOrder sortOrder;
+    private ExpenseAggregates.Granularity totalsGranularity = ExpenseAggregates.Granularity.DAY;
     private User currentUser;
+    private boolean expensesLoading;
+    // Bumped by each loadExpenses() so the results of an older load are ignored
+    private int loadGeneration;
+    // The ledger opened last, until the next load or exit closes it; persistence
+    // thread only
+    private LedgerEngine openedLedger;
+    private final PersistenceExecutor persistence = new PersistenceExecutor();
+    private final CredentialStore credentials = new CredentialStore(CREDENTIALS_FILE);
+    private CategoryRules categoryRules = CategoryRules.parse(Collections.emptyList());
+    // Budget alerts raised on any thread and not shown yet; guarded by itself
+    private final List<BudgetMonitor.Alert> pendingAlerts = new ArrayList<>();
+    private boolean alertsScheduled;
 
     private static final String CREDENTIALS_FILE = "credentials.txt";
+    private static final String CATEGORY_RULES_FILE = "category_rules.txt";
     private static final String EXPENSES_FILE_PREFIX = "expenses_";
-    private static final String TOTALS_FILE = "totals.txt";
+    private static final String TOTALS_FILE_PREFIX = "totals_";
+    private static final String TOTALS_FILE_SUFFIX = ".txt";
+    private static final String TEXT_FILE_SUFFIX = ".txt";
+    private static final String BUDGETS_FILE_PREFIX = "budgets_";
+    private static final String RECURRING_FILE_PREFIX = "recurring_";
+    // How often recurring expenses that fell due meanwhile are added
+    private static final int RECURRING_CHECK_MILLIS = 60 * 60 * 1000;
+
+    private static final Metrics.Histogram UPDATE_TIME = Metrics.histogram("ui.updateExpenseArea");
+    private static final Metrics.Histogram FILTER_TIME = Metrics.histogram("ui.filter");
+    private static final Metrics.Histogram SEARCH_TIME = Metrics.histogram("ui.search");
 
     public static void main(String[] args) {
         SwingUtilities.invokeLater(() -> {
@@ -95,8 +74,19 @@ public class ExpenseTrackerApp {
     }
 
     public ExpenseTrackerApp() {
+        // One hook, so the ledger is closed before the persistence thread stops
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            persistence.submit(() -> {
+                closeOpenedLedger();
+                return null;
+            }, done -> { }, null);
+            persistence.shutdown();
+        }, "expense-shutdown"));
+        Metrics.startReporting();
+        Metrics.monitorEventQueue();
         initialize();
-        loadExpenses();
+        loadCategoryRules();
+        new Timer(RECURRING_CHECK_MILLIS, e -> materializeRecurring()).start();
     }
 
     private void initialize() {
@@ -105,7 +95,7 @@ public class ExpenseTrackerApp {
         frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
         frame.setLayout(new BorderLayout());
 
-        expenses = new ArrayList<>();
+        visibleExpenses = allExpenses();
 
         JPanel loginPanel = createLoginPanel();
         JPanel expensePanel = createExpensePanel();
@@ -113,6 +103,13 @@ public class ExpenseTrackerApp {
         frame.add(loginPanel, BorderLayout.NORTH);
         frame.add(expensePanel, BorderLayout.CENTER);
 
+        // Shown while a user's expenses are loading in the background
+        loadProgressBar = new JProgressBar(0, 100);
+        loadProgressBar.setStringPainted(true);
+        loadProgressBar.setString("Loading expenses...");
+        loadProgressBar.setVisible(false);
+        frame.add(loadProgressBar, BorderLayout.SOUTH);
+
         frame.setVisible(true);
            // Set default values for input fields
          setDefaultValues();
@@ -179,29 +176,81 @@ public class ExpenseTrackerApp {
     }
     private JPanel createSortAndFilterPanel() {
         JPanel panel = new JPanel(new BorderLayout());
+        JPanel sortPanel = new JPanel(new BorderLayout());
     
         JButton sortByDateButton = new JButton("Sort by Date");
         JButton sortByAmountButton = new JButton("Sort by Amount");
         JButton sortByCategoryButton = new JButton("Sort by Category");
     
         sortByDateButton.addActionListener(e -> {
-            expenses.sort((e1, e2) -> e1.getDate().compareTo(e2.getDate()));
-            updateExpenseArea();
+            sortOrder = ExpenseStore.SortOrder.DATE;
+            showExpenses(visibleExpenses.sortedBy(sortOrder));
         });
     
         sortByAmountButton.addActionListener(e -> {
-            expenses.sort((e1, e2) -> Double.compare(e1.getAmount(), e2.getAmount()));
-            updateExpenseArea();
+            sortOrder = ExpenseStore.SortOrder.AMOUNT;
+            showExpenses(visibleExpenses.sortedBy(sortOrder));
         });
     
         sortByCategoryButton.addActionListener(e -> {
-            expenses.sort((e1, e2) -> e1.getCategory().compareTo(e2.getCategory()));
-            updateExpenseArea();
+            sortOrder = ExpenseStore.SortOrder.CATEGORY;
+            showExpenses(visibleExpenses.sortedBy(sortOrder));
         });
     
-        panel.add(sortByDateButton, BorderLayout.WEST);
-        panel.add(sortByAmountButton, BorderLayout.CENTER);
-        panel.add(sortByCategoryButton, BorderLayout.EAST);
+        sortPanel.add(sortByDateButton, BorderLayout.WEST);
+        sortPanel.add(sortByAmountButton, BorderLayout.CENTER);
+        sortPanel.add(sortByCategoryButton, BorderLayout.EAST);
+
+        // Filters show an indexed view of the expenses; the full ledger is kept
+        JPanel filterPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        filterCategoryField = new JTextField(10);
+        filterFromField = new JTextField(8);
+        filterToField = new JTextField(8);
+        JButton filterButton = new JButton("Filter");
+        JButton showAllButton = new JButton("Show All");
+        filterButton.addActionListener(e -> filterExpenses());
+        showAllButton.addActionListener(e -> showExpenses(sorted(allExpenses())));
+        filterPanel.add(new JLabel("Category:"));
+        filterPanel.add(filterCategoryField);
+        filterPanel.add(new JLabel("From (yyyy-MM-dd):"));
+        filterPanel.add(filterFromField);
+        filterPanel.add(new JLabel("To:"));
+        filterPanel.add(filterToField);
+        filterPanel.add(filterButton);
+        filterPanel.add(showAllButton);
+
+        // Description search, re-run as the user types
+        searchField = new JTextField(12);
+        searchField.getDocument().addDocumentListener(new DocumentListener() {
+            @Override
+            public void insertUpdate(DocumentEvent e) {
+                searchExpenses();
+            }
+
+            @Override
+            public void removeUpdate(DocumentEvent e) {
+                searchExpenses();
+            }
+
+            @Override
+            public void changedUpdate(DocumentEvent e) {
+                searchExpenses();
+            }
+        });
+        filterPanel.add(new JLabel("Search:"));
+        filterPanel.add(searchField);
+
+        // Totals under the table by day, month or year, answered from the rollups
+        JComboBox<ExpenseAggregates.Granularity> totalsBox = new JComboBox<>(ExpenseAggregates.Granularity.values());
+        totalsBox.addActionListener(e -> {
+            totalsGranularity = (ExpenseAggregates.Granularity) totalsBox.getSelectedItem();
+            updateExpenseArea();
+        });
+        filterPanel.add(new JLabel("Totals by:"));
+        filterPanel.add(totalsBox);
+
+        panel.add(sortPanel, BorderLayout.NORTH);
+        panel.add(filterPanel, BorderLayout.SOUTH);
     
         return panel;
     }
@@ -211,17 +260,28 @@ public class ExpenseTrackerApp {
         // Set the background color of the entire panel to light gray
         panel.setBackground(new Color(192, 192, 192)); // Light Gray background
         
-        expenseArea = new JTextArea();
+        expenseTableModel = new ExpenseTableModel();
+        expenseTableModel.setExpenses(visibleExpenses);
+        expenseTable = new JTable(expenseTableModel);
+        expenseTable.setSelectionMode(ListSelectionModel.MULTIPLE_INTERVAL_SELECTION);
         
-        // Set the background color of the expense area to light gray
-        expenseArea.setBackground(new Color(220, 220, 220)); // Light Gray background
+        // Set the background color of the expense table to light gray
+        expenseTable.setBackground(new Color(220, 220, 220)); // Light Gray background
         
-        JScrollPane scrollPane = new JScrollPane(expenseArea);
+        JScrollPane scrollPane = new JScrollPane(expenseTable);
+
+        // Category/date totals and grand total are shown under the table
+        totalsArea = new JTextArea(6, 40);
+        totalsArea.setEditable(false);
+        totalsArea.setBackground(new Color(220, 220, 220)); // Light Gray background
+
+        JSplitPane splitPane = new JSplitPane(JSplitPane.VERTICAL_SPLIT, scrollPane, new JScrollPane(totalsArea));
+        splitPane.setResizeWeight(0.75);
     
         JPanel sortAndFilterPanel = createSortAndFilterPanel();
         JPanel expenseInputPanel = createExpenseInputPanel();
     
-        panel.add(scrollPane, BorderLayout.CENTER);
+        panel.add(splitPane, BorderLayout.CENTER);
         panel.add(expenseInputPanel, BorderLayout.SOUTH);
         panel.add(sortAndFilterPanel, BorderLayout.NORTH);
     
@@ -232,14 +292,65 @@ public class ExpenseTrackerApp {
     // Other methods...
     
 
-private void filterExpensesByCategory(String filterCategory) {
-    ArrayList<Expense> filteredExpenses = new ArrayList<>();
-    for (Expense expense : expenses) {
-        if (expense.getCategory().equalsIgnoreCase(filterCategory)) {
-            filteredExpenses.add(expense);
-        }
+// Category and/or date range from the filter fields; empty fields are unbounded
+private void filterExpenses() {
+    String category = filterCategoryField.getText().trim();
+    int fromDay = filterFromField.getText().trim().isEmpty()
+            ? Integer.MIN_VALUE : EpochDays.parse(filterFromField.getText().trim());
+    int toDay = filterToField.getText().trim().isEmpty()
+            ? Integer.MAX_VALUE : EpochDays.parse(filterToField.getText().trim());
+    if (fromDay == EpochDays.INVALID || toDay == EpochDays.INVALID) {
+        JOptionPane.showMessageDialog(frame, "Invalid date format");
+        return;
     }
-    expenses = filteredExpenses;
+    if (ledger == null) {
+        return;
+    }
+    long start = Metrics.start();
+    if (category.isEmpty()) {
+        showExpenses(sorted(ledger.read(expenses -> expenses.byDateRange(fromDay, toDay))));
+    } else {
+        showExpenses(sorted(ledger.read(expenses -> expenses.byCategory(category, fromDay, toDay))));
+    }
+    FILTER_TIME.recordSince(start);
+}
+
+// Expenses whose descriptions have words starting with each word typed; if there
+// are none, words within an edit or two of them, to forgive typos
+private void searchExpenses() {
+    String query = searchField.getText().trim();
+    if (ledger == null) {
+        return;
+    }
+    if (query.isEmpty()) {
+        showExpenses(sorted(allExpenses()));
+        return;
+    }
+    long start = Metrics.start();
+    showExpenses(sorted(ledger.read(expenses -> {
+        ExpenseView prefixed = expenses.search(query, DescriptionIndex.Match.PREFIX);
+        return prefixed.size() > 0 ? prefixed : expenses.search(query, DescriptionIndex.Match.FUZZY);
+    })));
+    SEARCH_TIME.recordSince(start);
+}
+
+// Every expense of the signed-in user, in the order added; only the newest ones
+// while the ledger is loading, and none before login
+private ExpenseView allExpenses() {
+    if (ledger == null) {
+        return preview == null ? new ExpenseStore().all() : preview.getRecent().all();
+    }
+    return ledger.read(ExpenseStore::all);
+}
+
+// The view in the order picked with the sort buttons, if any
+private ExpenseView sorted(ExpenseView view) {
+    return sortOrder == null ? view : view.sortedBy(sortOrder);
+}
+
+private void showExpenses(ExpenseView view) {
+    visibleExpenses = view;
+    expenseTableModel.setExpenses(visibleExpenses, ledger);
     updateExpenseArea();
 }
 
@@ -261,6 +372,8 @@ private void filterExpensesByCategory(String filterCategory) {
 
         JButton addExpenseButton = new JButton("Add Expense");
         JButton deleteExpenseButton = new JButton("Delete Selected Expense");
+        JButton importButton = new JButton("Import Statement...");
+        importButton.addActionListener(e -> importExpenses());
         
 
         addExpenseButton.addActionListener(new ActionListener() {
@@ -323,227 +436,212 @@ private void filterExpensesByCategory(String filterCategory) {
         gbc.gridwidth = 2;
         panel.add(deleteExpenseButton, gbc);
 
+        gbc.gridx = 0;
+        gbc.gridy = 6;
+        gbc.gridwidth = 2;
+        panel.add(importButton, gbc);
+
         return panel;
     }
 
     private void login() {
         String enteredUsername = usernameField.getText();
         char[] enteredPassword = passwordField.getPassword();
-    
-        if (isValidUser(enteredUsername, enteredPassword)) {
-            currentUser = new User(enteredUsername, new String(enteredPassword));
-            loadExpenses(); // Load expenses for the current user
-            updateExpenseArea();
-        } else {
-            if (registerNewUserAttempt()) {
-                login(); // Recursive call to login after successful registration
+
+        // Clear the password field; the check itself runs off the EDT
+        passwordField.setText("");
+
+        persistence.submit(() -> credentials.isValidUser(enteredUsername, enteredPassword), valid -> {
+            if (valid) {
+                currentUser = new User(enteredUsername, new String(enteredPassword));
+                loadExpenses(); // Load expenses for the current user
             } else {
-                JOptionPane.showMessageDialog(frame, "Invalid username or password");
+                registerNewUserAttempt(enteredUsername, enteredPassword);
             }
-        }
-    
-        // Clear the password field after processing
-        passwordField.setText("");
+        }, this::showStorageError);
     }
     
     
 
-    private boolean registerNewUserAttempt() {
+    private void registerNewUserAttempt(String newUsername, char[] newPassword) {
         int option = JOptionPane.showConfirmDialog(frame, "User not found. Do you want to register as a new user?",
                 "New User Registration", JOptionPane.YES_NO_OPTION);
 
         if (option == JOptionPane.YES_OPTION) {
-            registerNewUser();
-            return true;
+            registerNewUser(newUsername, newPassword);
+        } else {
+            JOptionPane.showMessageDialog(frame, "Invalid username or password");
         }
-
-        return false;
     }
 
-    private void registerNewUser() {
-        String newUsername = usernameField.getText();
-        char[] newPassword = passwordField.getPassword();
-
+    private void registerNewUser(String newUsername, char[] newPassword) {
         if (newUsername.isEmpty() || newPassword.length == 0) {
             JOptionPane.showMessageDialog(frame, "Please enter both username and password for registration");
             return;
         }
-
-        if (userExists(newUsername)) {
-            JOptionPane.showMessageDialog(frame, "Username already exists. Please choose a different username.");
+        if (newUsername.contains(",")) {
+            JOptionPane.showMessageDialog(frame, "Username cannot contain commas");
             return;
         }
 
-        saveNewUserCredentials(newUsername, new String(newPassword));
-
-        JOptionPane.showMessageDialog(frame, "Registration successful! You can now log in with your new credentials.");
-    }
-
-    private boolean userExists(String newUsername) {
-        try (BufferedReader reader = new BufferedReader(new FileReader(CREDENTIALS_FILE))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                String[] parts = line.split(",");
-                String username = parts[0];
-                if (newUsername.equals(username)) {
-                    return true;
+        persistence.submit(() -> {
+            if (credentials.userExists(newUsername)) {
+                return false;
+            }
+            credentials.addUser(newUsername, newPassword);
+            return true;
+        }, registered -> {
+            if (!registered) {
+                JOptionPane.showMessageDialog(frame, "Username already exists. Please choose a different username.");
+                return;
+            }
+            JOptionPane.showMessageDialog(frame, "Registration successful! You can now log in with your new credentials.");
+            currentUser = new User(newUsername, new String(newPassword));
+            loadExpenses();
+        }, this::showStorageError);
+    }
+
+    // Opens the current user's ledger on the persistence thread, after any queued
+    // writes, and closes the previous one there, even if it is still loading;
+    // large files are memory-mapped and parsed in parallel. The preview saved at
+    // the last close is read and shown first, so the totals and newest expenses
+    // appear at once whatever the ledger size; the full ledger is swapped in on
+    // the EDT when loaded.
+    private void loadExpenses() {
+        int generation = ++loadGeneration;
+        String ledgerPath = EXPENSES_FILE_PREFIX + currentUser.getUsername();
+
+        ledger = null;
+        preview = null;
+        expensesLoading = true;
+        loadProgressBar.setValue(0);
+        loadProgressBar.setString("Loading expenses...");
+        loadProgressBar.setVisible(true);
+
+        persistence.submit(() -> {
+            closeOpenedLedger();
+            return LedgerPreview.load(ledgerPath);
+        }, userPreview -> {
+            if (generation == loadGeneration) {
+                previewLoaded(userPreview);
+            }
+        }, this::showStorageError);
+
+        int[] lastPercent = {-1};
+        String totalsPath = totalsFile();
+        File budgetsFile = new File(BUDGETS_FILE_PREFIX + currentUser.getUsername() + TEXT_FILE_SUFFIX);
+        persistence.submit(() -> {
+            LedgerEngine userLedger = LedgerEngine.open(ledgerPath, (bytesDone, bytesTotal) -> {
+                int percent = (int) Math.min(100, bytesDone * 100 / Math.max(1, bytesTotal));
+                synchronized (lastPercent) {
+                    if (percent == lastPercent[0]) {
+                        return;
+                    }
+                    lastPercent[0] = percent;
+                }
+                SwingUtilities.invokeLater(() -> loadProgressBar.setValue(percent));
+            });
+            openedLedger = userLedger;
+            userLedger.setErrorListener(e -> SwingUtilities.invokeLater(() -> showStorageError(e)));
+            userLedger.maintainTotalsFile(totalsPath);
+            userLedger.setBudgetListener(this::budgetAlert);
+            if (budgetsFile.exists()) {
+                try {
+                    userLedger.setBudgets(BudgetMonitor.load(budgetsFile.toPath()));
+                } catch (IllegalArgumentException e) {
+                    SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(frame,
+                            "Could not read " + budgetsFile + ": " + e.getMessage()));
                 }
             }
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        return false;
+            return userLedger;
+        }, userLedger -> {
+            // An older load's ledger is closed by the newer load
+            if (generation == loadGeneration) {
+                expensesLoaded(userLedger);
+            }
+        }, e -> {
+            if (generation != loadGeneration) {
+                return;
+            }
+            expensesLoading = false;
+            loadProgressBar.setVisible(false);
+            showStorageError(e);
+        });
     }
 
-    private void saveNewUserCredentials(String newUsername, String newPassword) {
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter(CREDENTIALS_FILE, true))) {
-            writer.write(newUsername + "," + newPassword);
-            writer.newLine();
-        } catch (IOException e) {
-            e.printStackTrace();
+    private void previewLoaded(LedgerPreview userPreview) {
+        preview = userPreview;
+        if (preview != null && expensesLoading) {
+            loadProgressBar.setString(String.format("Showing the newest %,d of %,d expenses; loading the rest...",
+                    preview.getRecent().size(), preview.size()));
         }
+        showExpenses(sorted(allExpenses()));
     }
 
-    private boolean isValidUser(String enteredUsername, char[] enteredPassword) {
-        try (BufferedReader reader = new BufferedReader(new FileReader(CREDENTIALS_FILE))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                String[] parts = line.split(",");
-                String username = parts[0];
-                String password = parts[1];
-                if (enteredUsername.equals(username) && new String(enteredPassword).equals(password)) {
-                    return true;
-                }
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+    private void expensesLoaded(LedgerEngine userLedger) {
+        expensesLoading = false;
+        loadProgressBar.setVisible(false);
+
+        ledger = userLedger;
+        preview = null;
+        visibleExpenses = sorted(allExpenses());
+        expenseTableModel.setExpenses(visibleExpenses, ledger);
+        updateExpenseArea();
+        materializeRecurring();
 
-        return false;
+        if (ledger.getMalformedLines() > 0) {
+            List<String> errors = ledger.getErrors();
+            JOptionPane.showMessageDialog(frame, "Skipped " + ledger.getMalformedLines()
+                    + " malformed line(s) in your expenses file:\n"
+                    + String.join("\n", errors.subList(0, Math.min(errors.size(), 10))));
+        }
     }
 
-    private void loadExpenses() {
-        expenses.clear();
-        try (BufferedReader reader = new BufferedReader(new FileReader(EXPENSES_FILE_PREFIX + currentUser.getUsername()))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                String[] parts = line.split(",");
-                String description = parts[0];
-                Date date = new SimpleDateFormat("yyyy-MM-dd").parse(parts[1]);
-                String category = parts[2];
-                double amount = Double.parseDouble(parts[3]);
-                expenses.add(new Expense(description, date, category, amount));
-            }
-        } catch (IOException | ParseException | NumberFormatException e) {
-            e.printStackTrace();
+    // Persistence thread: closes the ledger opened last, making its queued writes
+    // durable
+    private void closeOpenedLedger() throws IOException {
+        LedgerEngine opened = openedLedger;
+        openedLedger = null;
+        if (opened != null) {
+            opened.close();
         }
     }
+
+    private void showStorageError(Exception e) {
+        JOptionPane.showMessageDialog(frame, "Could not access your data files: " + e.getMessage());
+    }
     
     
     
 
     private void updateExpenseArea() {
-        expenseArea.setText("");
-
-        // Add column headers with fixed width
-        expenseArea.append(String.format("%-20s %-15s %-15s %-15s %-10s\n",
-                "Description", "Category", "Date", "Amount", "Running Total"));
-
-        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
-
-        // Map to store total amount for each category and date
-        Map<String, Map<String, Double>> categoryDateTotalMap = new HashMap<>();
-
-        // Variable to store grand total
-        double grandTotal = 0.0;
-
-        for (Expense expense : expenses) {
-            // Append each expense with details in separate columns
-            expenseArea.append(String.format("%-20s %-15s %-15s %-15s %-10s\n",
-                    expense.getDescription(),
-                    expense.getCategory(),
-                    dateFormat.format(expense.getDate()),
-                    "RS " + expense.getAmount(),
-                    "RS " + (grandTotal += expense.getAmount())));
-
-            // Update total amount for the category and date
-            categoryDateTotalMap
-                    .computeIfAbsent(expense.getCategory(), k -> new HashMap<>())
-                    .merge(dateFormat.format(expense.getDate()), expense.getAmount(), Double::sum);
-        }
-
-        // Display total amount for each category and date
-        expenseArea.append("\nTotal Amount for Each Category and Date:\n");
-        for (Map.Entry<String, Map<String, Double>> categoryEntry : categoryDateTotalMap.entrySet()) {
-            expenseArea.append(String.format("%-15s\n", categoryEntry.getKey()));
-            for (Map.Entry<String, Double> dateEntry : categoryEntry.getValue().entrySet()) {
-                expenseArea.append(String.format("  %-15s: RS %.2f\n", dateEntry.getKey(), dateEntry.getValue()));
-            }
+        long start = Metrics.start();
+        // Rows are rendered on demand by the table model
+        expenseTableModel.refresh();
+
+        // While the ledger loads, the totals saved with the preview are shown as they are
+        if (ledger == null && preview != null) {
+            totalsArea.setText(preview.formatSummary(totalsGranularity));
+            UPDATE_TIME.recordSince(start);
+            return;
         }
 
-        // Display grand total
-        expenseArea.append(String.format("\nGrand Total: RS %.2f\n", grandTotal));
+        // Totals are maintained incrementally by the ledger
+        Map<String, Map<String, Long>> categoryDateTotalMap = ledger == null
+                ? Collections.emptyMap() : ledger.getCategoryDateTotals();
+        long grandTotalPaise = ledger == null ? 0 : ledger.getGrandTotalPaise();
 
-        // Save total expenses data to file
-        saveTotalExpenses(categoryDateTotalMap, grandTotal);
-    }
-
-    
-    private void saveTotalExpenses(Map<String, Map<String, Double>> categoryDateTotalMap, double grandTotal) {
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter(TOTALS_FILE))) {
-            writer.write("Category,Date,Amount\n");
-            for (Map.Entry<String, Map<String, Double>> categoryEntry : categoryDateTotalMap.entrySet()) {
-                for (Map.Entry<String, Double> dateEntry : categoryEntry.getValue().entrySet()) {
-                    writer.write(categoryEntry.getKey() + "," + dateEntry.getKey() + "," + dateEntry.getValue());
-                    writer.newLine();
-                }
-            }
-            writer.write("Grand Total,, " + String.valueOf(grandTotal));
+        // Display total amount for each category and date (or month or year), then the grand total
+        totalsArea.setText(totalsGranularity == ExpenseAggregates.Granularity.DAY || ledger == null
+                ? ExpenseAggregates.formatSummary(categoryDateTotalMap, grandTotalPaise)
+                : ledger.formatSummary(totalsGranularity));
 
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        UPDATE_TIME.recordSince(start);
     }
 
-    private void loadTotalExpenses() {
-        try (BufferedReader reader = new BufferedReader(new FileReader(TOTALS_FILE))) {
-            String line;
-            Map<String, Map<String, Double>> categoryDateTotalMap = new HashMap<>();
-            double grandTotal = 0.0;
-
-            while ((line = reader.readLine()) != null) {
-                String[] parts = line.split(",");
-                if (parts.length == 3) {
-                    String category = parts[0];
-                    String date = parts[1];
-                    double amount = Double.parseDouble(parts[2]);
-
-                    categoryDateTotalMap
-                            .computeIfAbsent(category, k -> new HashMap<>())
-                            .put(date, amount);
-
-                    if (!date.isEmpty()) {
-                        grandTotal += amount;
-                    }
-                }
-            }
-
-            // Display total expenses data in the expense area
-            expenseArea.append("\nTotal Amount for Each Category and Date (Loaded from File):\n");
-            for (Map.Entry<String, Map<String, Double>> categoryEntry : categoryDateTotalMap.entrySet()) {
-                expenseArea.append(String.format("%-15s\n", categoryEntry.getKey()));
-                for (Map.Entry<String, Double> dateEntry : categoryEntry.getValue().entrySet()) {
-                    expenseArea.append(String.format("  %-15s: RS %.2f\n", dateEntry.getKey(), dateEntry.getValue()));
-                }
-            }
-
-            // Display loaded grand total
-            expenseArea.append(String.format("\nLoaded Grand Total: RS %.2f\n", grandTotal));
-
-        } catch (IOException | NumberFormatException e) {
-            e.printStackTrace();
-        }
+    // Totals are kept per user, so concurrent sessions never share a file
+    private String totalsFile() {
+        return TOTALS_FILE_PREFIX + currentUser.getUsername() + TOTALS_FILE_SUFFIX;
     }
 
     // ... (unchanged)
@@ -553,30 +651,48 @@ private void filterExpensesByCategory(String filterCategory) {
             JOptionPane.showMessageDialog(frame, "Please log in first");
             return;
         }
+        if (expensesLoading || ledger == null) {
+            JOptionPane.showMessageDialog(frame, "Please wait until your expenses have loaded");
+            return;
+        }
     
         String description = descriptionField.getText();
         String dateText = dateField.getText();
         String category = categoryField.getText();
         String amountText = amountField.getText();
     
-        if (description.isEmpty() || dateText.isEmpty() || category.isEmpty() || amountText.isEmpty()) {
+        // The category may be left empty for the category rules to fill in
+        if (description.isEmpty() || dateText.isEmpty() || amountText.isEmpty()) {
             JOptionPane.showMessageDialog(frame, "Please enter all fields for the expense");
             return;
         }
+
+        if (category.indexOf(',') >= 0) {
+            JOptionPane.showMessageDialog(frame, "Category cannot contain commas");
+            return;
+        }
     
         try {
             Date date = new SimpleDateFormat("yyyy-MM-dd").parse(dateText);
-            double amount = Double.parseDouble(amountText);
-            Expense expense = new Expense(description, date, category, amount);
-            expenses.add(expense);
+            long amountPaise = Money.parse(amountText);
+            if (category.trim().isEmpty()) {
+                category = categoryRules.categorize(description, amountPaise);
+                if (category == null) {
+                    JOptionPane.showMessageDialog(frame, "No category rule matches; please enter a category");
+                    return;
+                }
+            }
+            Expense expense = new Expense(description, date, category, amountPaise);
+            ledger.add(expense);
             updateExpenseArea();
-            saveExpenses();
             clearExpenseInputFields();
             
             // Set default values for input fields after processing an input
             setDefaultValues();
         } catch (ParseException | NumberFormatException e) {
             JOptionPane.showMessageDialog(frame, "Invalid date or amount format");
+        } catch (IllegalArgumentException e) {
+            JOptionPane.showMessageDialog(frame, e.getMessage());
         }
     }
     
@@ -586,64 +702,149 @@ private void filterExpensesByCategory(String filterCategory) {
             JOptionPane.showMessageDialog(frame, "Please log in first");
             return;
         }
+        if (expensesLoading || ledger == null) {
+            JOptionPane.showMessageDialog(frame, "Please wait until your expenses have loaded");
+            return;
+        }
     
-        int selectionStart = expenseArea.getSelectionStart();
-        int selectionEnd = expenseArea.getSelectionEnd();
-    
-        if (selectionStart != selectionEnd) {
-            String selectedText = expenseArea.getSelectedText();
-    
-            // Use iterator to safely remove element during iteration
-            for (java.util.Iterator<Expense> iterator = expenses.iterator(); iterator.hasNext(); ) {
-                Expense expense = iterator.next();
-                if (selectedText.trim().startsWith(expense.getDescription())) {
-                    iterator.remove();
-                    updateExpenseArea();
-                    saveExpenses();
-                    return; // Exit the loop once we find and remove the expense
-                }
-            }
+        int[] selectedRows = expenseTable.getSelectedRows();
+        if (selectedRows.length == 0) {
+            return;
+        }
+
+        // Resolve ids first: removing a row moves another one into its slot
+        long[] ids = new long[selectedRows.length];
+        for (int i = 0; i < selectedRows.length; i++) {
+            ids[i] = expenseTableModel.getExpenseId(expenseTable.convertRowIndexToModel(selectedRows[i]));
         }
+        ledger.remove(ids);
+        expenseTable.clearSelection();
+        updateExpenseArea();
     }
-    
-    
-    
-private String extractDescriptionFromFormattedText(String formattedText) {
-    // Extract description from the formatted text
-    int index = formattedText.indexOf(" - Date:");
-    if (index != -1) {
-        return formattedText.substring(0, index).trim();
+
+    // Streams a statement file into the ledger on the persistence thread. Edits are
+    // blocked meanwhile; the table is refreshed after each batch and the totals
+    // once, at the end.
+    private void importExpenses() {
+        if (currentUser == null) {
+            JOptionPane.showMessageDialog(frame, "Please log in first");
+            return;
+        }
+        if (expensesLoading || ledger == null) {
+            JOptionPane.showMessageDialog(frame, "Please wait until your expenses have loaded");
+            return;
+        }
+        JFileChooser chooser = new JFileChooser();
+        if (chooser.showOpenDialog(frame) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        File file = chooser.getSelectedFile();
+        ExpenseImporter importer = new ExpenseImporter(ledger, categoryRules);
+        importer.setBatchListener(() -> SwingUtilities.invokeLater(expenseTableModel::refresh));
+
+        expensesLoading = true;
+        loadProgressBar.setValue(0);
+        loadProgressBar.setString("Importing " + file.getName() + "...");
+        loadProgressBar.setVisible(true);
+
+        int[] lastPercent = {-1};
+        persistence.submit(() -> importer.importFile(file.toPath(), (bytesDone, bytesTotal) -> {
+            int percent = (int) Math.min(100, bytesDone * 100 / Math.max(1, bytesTotal));
+            if (percent != lastPercent[0]) {
+                lastPercent[0] = percent;
+                SwingUtilities.invokeLater(() -> loadProgressBar.setValue(percent));
+            }
+        }), result -> {
+            importFinished();
+            StringBuilder message = new StringBuilder("Imported " + result.getImported() + " expense(s)");
+            if (result.getRejected() > 0) {
+                List<String> errors = result.getErrors();
+                message.append(", skipped ").append(result.getRejected()).append(" line(s):\n")
+                        .append(String.join("\n", errors.subList(0, Math.min(errors.size(), 10))));
+            }
+            JOptionPane.showMessageDialog(frame, message.toString());
+        }, e -> {
+            importFinished();
+            showStorageError(e);
+        });
     }
-    return formattedText.trim();
-}
 
-    
-    
-private Expense findExpenseByFormattedDescription(String formattedDescription) {
-    for (Expense expense : expenses) {
-        if (expense.getFormattedDescription().equals(formattedDescription)) {
-            return expense;
+    // Adds the recurring expenses from recurring_<user>.txt that are due by today
+    // and not added yet, on the persistence thread. The rules are re-read each
+    // time, so edits to the file apply from the next check.
+    private void materializeRecurring() {
+        LedgerEngine userLedger = ledger;
+        if (userLedger == null || expensesLoading) {
+            return;
         }
+        String username = currentUser.getUsername();
+        Path rulesFile = Paths.get(RECURRING_FILE_PREFIX + username + TEXT_FILE_SUFFIX);
+        Path stateFile = Paths.get(EXPENSES_FILE_PREFIX + username + ".recurring");
+        int today = ExpenseStore.toEpochDay(new Date());
+        persistence.submit(() -> RecurringExpenses.open(rulesFile, stateFile).materialize(userLedger, today),
+                added -> {
+                    if (added > 0 && ledger == userLedger) {
+                        showExpenses(sorted(allExpenses()));
+                    }
+                }, e -> {
+                    if (e instanceof IllegalArgumentException) {
+                        JOptionPane.showMessageDialog(frame, "Could not read " + rulesFile + ": " + e.getMessage());
+                    } else {
+                        showStorageError(e);
+                    }
+                });
     }
-    return null;
-}
 
-    
-    
-private void saveExpenses() {
-    try (BufferedWriter writer = new BufferedWriter(new FileWriter(EXPENSES_FILE_PREFIX + currentUser.getUsername()))) {
-        for (Expense expense : expenses) {
-            SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
-            writer.write(expense.getDescription() + "," + dateFormat.format(expense.getDate()) +
-                    "," + expense.getCategory() + "," + expense.getAmount());
-            writer.newLine();
+    // Called on whichever thread changed the ledger; alerts raised while a dialog
+    // is up, e.g. during an import, are shown together in the next one
+    private void budgetAlert(BudgetMonitor.Alert alert) {
+        synchronized (pendingAlerts) {
+            pendingAlerts.add(alert);
+            if (alertsScheduled) {
+                return;
+            }
+            alertsScheduled = true;
         }
-    } catch (IOException e) {
-        e.printStackTrace();
+        SwingUtilities.invokeLater(this::showBudgetAlerts);
     }
-}
 
+    private void showBudgetAlerts() {
+        while (true) {
+            List<String> alerts = new ArrayList<>();
+            synchronized (pendingAlerts) {
+                if (pendingAlerts.isEmpty()) {
+                    alertsScheduled = false;
+                    return;
+                }
+                for (BudgetMonitor.Alert alert : pendingAlerts) {
+                    alerts.add(alert.toString());
+                }
+                pendingAlerts.clear();
+            }
+            StringBuilder message = new StringBuilder(String.join("\n", alerts.subList(0, Math.min(alerts.size(), 10))));
+            if (alerts.size() > 10) {
+                message.append("\n... and ").append(alerts.size() - 10).append(" more");
+            }
+            JOptionPane.showMessageDialog(frame, message.toString(), "Budget alert", JOptionPane.WARNING_MESSAGE);
+        }
+    }
 
+    private void importFinished() {
+        expensesLoading = false;
+        loadProgressBar.setVisible(false);
+        loadProgressBar.setString("Loading expenses...");
+        showExpenses(sorted(allExpenses()));
+    }
+
+    // Rules that fill in empty categories, read from category_rules.txt on the
+    // persistence thread; without the file no rule matches
+    private void loadCategoryRules() {
+        File rulesFile = new File(CATEGORY_RULES_FILE);
+        persistence.submit(() -> rulesFile.exists()
+                        ? CategoryRules.load(rulesFile.toPath()) : CategoryRules.parse(Collections.emptyList()),
+                rules -> categoryRules = rules, e -> JOptionPane.showMessageDialog(frame,
+                        "Could not read " + CATEGORY_RULES_FILE + ": " + e.getMessage()));
+    }
 
     private void clearExpenseInputFields() {
         descriptionField.setText("");
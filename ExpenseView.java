@@ -0,0 +1,135 @@
+import java.util.function.Function;
+import java.util.function.IntPredicate;
+
+// Read-only window onto an ExpenseStore: every row, or the rows a query selected,
+// in the order of the index that answered it. Nothing is copied; the view maps
+// its positions to store rows and re-runs its two binary searches when the
+// store has changed since it last looked.
+//
+// A query view re-sorted into another order (sortedBy) and a search are the
+// cases that materialize: their k row numbers are found or sorted once per
+// store change.
+class ExpenseView {
+    private final ExpenseStore store;
+    private final Function<ExpenseIndexes, SortedRowIndex> indexOf;
+    private final IntPredicate beforeRange;
+    private final IntPredicate notAfterRange;
+    private final ExpenseStore.SortOrder order;
+    private final Function<ExpenseIndexes, int[]> selection;
+    private SortedRowIndex index;
+    private int from;
+    private int to;
+    private long totalBefore;
+    private int[] sortedRows;
+    private long[] sortedRunningTotals;
+    private int expectedModCount = -1;
+
+    // Rows of the index between the first row not beforeRange and the first row not
+    // notAfterRange (the whole index when both are null), in index order or, if
+    // order is set, re-sorted into that order
+    ExpenseView(ExpenseStore store, Function<ExpenseIndexes, SortedRowIndex> indexOf,
+                IntPredicate beforeRange, IntPredicate notAfterRange, ExpenseStore.SortOrder order) {
+        this.store = store;
+        this.indexOf = indexOf;
+        this.beforeRange = beforeRange;
+        this.notAfterRange = notAfterRange;
+        this.order = order;
+        this.selection = null;
+    }
+
+    // The rows selection picks, which it returns in id order; in that order or,
+    // if order is set, re-sorted into it
+    ExpenseView(ExpenseStore store, Function<ExpenseIndexes, int[]> selection, ExpenseStore.SortOrder order) {
+        this.store = store;
+        this.indexOf = ExpenseIndexes::added;
+        this.beforeRange = null;
+        this.notAfterRange = null;
+        this.order = order;
+        this.selection = selection;
+    }
+
+    public ExpenseStore getStore() {
+        return store;
+    }
+
+    // Same rows in the given order
+    public ExpenseView sortedBy(ExpenseStore.SortOrder order) {
+        if (!isFiltered()) {
+            return store.sorted(order);
+        }
+        if (selection != null) {
+            return new ExpenseView(store, selection, order);
+        }
+        return new ExpenseView(store, indexOf, beforeRange, notAfterRange, order);
+    }
+
+    // False for a view of every row, in any order
+    public boolean isFiltered() {
+        return beforeRange != null || selection != null;
+    }
+
+    public int size() {
+        resolve();
+        return to - from;
+    }
+
+    // Store row shown at the given position of the view
+    public int getRow(int position) {
+        resolve();
+        if (position < 0 || position >= to - from) {
+            throw new IndexOutOfBoundsException("Position: " + position + ", Size: " + (to - from));
+        }
+        return sortedRows != null ? sortedRows[position] : index.get(from + position);
+    }
+
+    // Sum of the amounts at positions 0..position of the view, in paise
+    public long getRunningTotal(int position) {
+        resolve();
+        if (sortedRows != null) {
+            return sortedRunningTotals[position];
+        }
+        return index.sumBefore(from + position + 1) - totalBefore;
+    }
+
+    private void resolve() {
+        if (expectedModCount == store.getModCount()) {
+            return;
+        }
+        ExpenseIndexes indexes = store.indexes();
+        if (selection != null) {
+            sortedRows = selection.apply(indexes);
+            from = 0;
+            to = sortedRows.length;
+            if (order != null) {
+                ExpenseStore.mergeSort(sortedRows, new int[to], 0, to, indexes.order(order)::compare);
+            }
+            sumSortedRows();
+            expectedModCount = store.getModCount();
+            return;
+        }
+        index = indexOf.apply(indexes);
+        from = beforeRange == null ? 0 : index.firstPosition(beforeRange);
+        to = notAfterRange == null ? index.size() : Math.max(from, index.firstPosition(notAfterRange));
+        totalBefore = index.sumBefore(from);
+        sortedRows = null;
+        SortedRowIndex orderIndex = order == null ? index : indexes.order(order);
+        if (orderIndex != index) {
+            sortedRows = new int[to - from];
+            for (int position = from; position < to; position++) {
+                sortedRows[position - from] = index.get(position);
+            }
+            ExpenseStore.mergeSort(sortedRows, new int[sortedRows.length], 0, sortedRows.length, orderIndex::compare);
+            sumSortedRows();
+        }
+        expectedModCount = store.getModCount();
+    }
+
+    private void sumSortedRows() {
+        sortedRunningTotals = new long[sortedRows.length];
+        long total = 0;
+        for (int position = 0; position < sortedRows.length; position++) {
+            total += store.getAmountPaise(sortedRows[position]);
+            sortedRunningTotals[position] = total;
+        }
+    }
+}
@@ -0,0 +1,31 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Locale;
+
+// A region of a file as a buffer for the loaders. It is memory-mapped, except on
+// Windows, where it is read into the heap: there a mapped file cannot be renamed
+// over until the mapping is garbage collected, which would make every later
+// compaction of the ledger fail. -Dledger.mmap=true|false overrides the choice.
+final class FileRegions {
+    private static final boolean MAP = Boolean.parseBoolean(System.getProperty("ledger.mmap",
+            String.valueOf(!System.getProperty("os.name", "").toLowerCase(Locale.ROOT).startsWith("windows"))));
+
+    private FileRegions() {
+    }
+
+    // length must fit in an int
+    static ByteBuffer read(FileChannel channel, long position, long length) throws IOException {
+        if (MAP) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(Math.toIntExact(length));
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("File ended while reading " + length + " bytes at " + position);
+            }
+        }
+        return buffer.flip();
+    }
+}
@@ -0,0 +1,188 @@
+import java.io.File;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+// Headless benchmarks for the load, save, aggregate, sort, filter and render
+// paths over synthetic ledgers. Each benchmark is warmed up, then timed per
+// operation; allocation is read from the thread's allocation counter and GC
+// activity from the collector beans, as JMH's gc profiler does.
+//
+// Usage: java -Xmx4g LedgerBenchmark [rows,rows,...] [benchmark...]
+//   -Dbench.warmup=seconds (default 2), -Dbench.measure=seconds (default 5)
+public class LedgerBenchmark {
+    private static final String[] CATEGORIES = {"Food", "Rent", "Travel", "Bills", "Shopping", "Health",
+            "Fuel", "Education", "Gifts", "Insurance"};
+    private static final String[] DESCRIPTIONS = {"Groceries", "Monthly rent", "Bus ticket", "Electricity",
+            "Clothes", "Pharmacy", "Coffee", "Dinner out", "Petrol", "Books", "Birthday", "Premium"};
+    private static final int PAGE_ROWS = 40;
+    private static final double WARMUP_SECONDS = Double.parseDouble(System.getProperty("bench.warmup", "2"));
+    private static final double MEASURE_SECONDS = Double.parseDouble(System.getProperty("bench.measure", "5"));
+    private static final int MIN_ITERATIONS = 5;
+
+    interface Operation {
+        void run() throws Exception;
+    }
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    public static void main(String[] args) throws Exception {
+        int[] sizes = {10_000, 1_000_000, 10_000_000};
+        if (args.length > 0) {
+            sizes = Arrays.stream(args[0].split(",")).mapToInt(Integer::parseInt).toArray();
+        }
+        List<String> selected = args.length > 1 ? Arrays.asList(args).subList(1, args.length) : null;
+
+        System.out.printf("%-20s %11s %12s %12s %12s %12s %10s %8s%n", "benchmark", "rows", "ops/s",
+                "avg ms/op", "p50 ms", "p99 ms", "MB/op", "gc ms");
+        for (int rows : sizes) {
+            Path dir = Files.createTempDirectory("ledger-bench");
+            try {
+                run(rows, dir, selected);
+            } finally {
+                for (File file : dir.toFile().listFiles()) {
+                    file.delete();
+                }
+                dir.toFile().delete();
+            }
+        }
+    }
+
+    private static void run(int rows, Path dir, List<String> selected) throws Exception {
+        ExpenseStore ledger = generate(rows);
+        String csvName = dir.resolve("expenses_csv").toString();
+        String binaryName = dir.resolve("expenses_binary").toString();
+        new ExpenseJournal(csvName).rewriteSnapshot(ledger, false);
+        new ExpenseJournal(binaryName).rewriteSnapshot(ledger, true);
+        ExpenseJournal saveJournal = new ExpenseJournal(dir.resolve("expenses_save").toString());
+
+        bench("load-csv", rows, selected, () -> new ExpenseJournal(csvName).load(new ExpenseStore()));
+        bench("load-binary", rows, selected, () -> new ExpenseJournal(binaryName).load(new ExpenseStore()));
+        bench("save-csv", rows, selected, () -> saveJournal.rewriteSnapshot(ledger, false));
+        bench("save-binary", rows, selected, () -> saveJournal.rewriteSnapshot(ledger, true));
+        bench("aggregate", rows, selected, () -> {
+            ExpenseAggregates aggregates = new ExpenseAggregates();
+            aggregates.rebuild(ledger);
+            ExpenseAggregates.formatSummary(aggregates.getCategoryDateTotals(), aggregates.getGrandTotalPaise());
+        });
+        // Reports over the whole ten years, answered from the rollups
+        ExpenseAggregates rollups = new ExpenseAggregates();
+        rollups.rebuild(ledger);
+        bench("report-month", rows, selected, () -> rollups.getTotals(ExpenseAggregates.Granularity.MONTH));
+        bench("report-range-total", rows, selected, () -> rollups.getTotal(null, 18_017, 21_400));
+        // A sort builds its index once; switching to it afterwards is O(1)
+        for (ExpenseStore.SortOrder order : ExpenseStore.SortOrder.values()) {
+            String name = "sort-" + order.name().toLowerCase();
+            bench(name, rows, selected, () -> new ExpenseIndexes(ledger).order(order));
+            ledger.sorted(order).size();
+            bench(name + "-switch", rows, selected, () -> render(ledger.sorted(order)));
+        }
+        ledger.byCategory(CATEGORIES[0]).size();
+        bench("filter-category", rows, selected, () -> render(ledger.byCategory(CATEGORIES[1])));
+        bench("add-delete", rows, selected, () -> {
+            ledger.add("Benchmark", 18_500, CATEGORIES[2], 12_345);
+            ledger.removeById(ledger.getId(ledger.size() - 1));
+        });
+        bench("render-page", rows, selected, () -> render(ledger.all()));
+        bench("search-build", rows, selected, () -> new ExpenseIndexes(ledger).descriptions());
+        ledger.search("", DescriptionIndex.Match.EXACT).size();
+        bench("search-rare", rows, selected, () -> render(ledger.search("refund", DescriptionIndex.Match.EXACT)));
+        bench("search-prefix", rows, selected, () -> render(ledger.search("cof", DescriptionIndex.Match.PREFIX)));
+        bench("search-fuzzy", rows, selected, () -> render(ledger.search("pharmcy", DescriptionIndex.Match.FUZZY)));
+        CategoryRules rules = rules();
+        bench("categorize", rows, selected, () -> {
+            for (int row = 0; row < ledger.size(); row++) {
+                rules.categorize(ledger.getDescription(row), ledger.getAmountPaise(row));
+            }
+        });
+    }
+
+    // A few thousand keyword rules that never match, then one per description
+    private static CategoryRules rules() {
+        Random random = new Random(7);
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            lines.add("keyword zz" + Integer.toString(random.nextInt(1 << 30), 36) + " -> Unused " + i);
+        }
+        for (String description : DESCRIPTIONS) {
+            lines.add("keyword " + description.toLowerCase() + " -> " + CATEGORIES[lines.size() % CATEGORIES.length]);
+        }
+        lines.add("amount 9000..* -> Large");
+        return CategoryRules.parse(lines);
+    }
+
+    // Formats one screen of table cells, as JTable does when it paints
+    private static void render(ExpenseView view) {
+        ExpenseTableModel model = new ExpenseTableModel();
+        model.setExpenses(view);
+        int rows = Math.min(PAGE_ROWS, model.getRowCount());
+        for (int row = 0; row < rows; row++) {
+            for (int column = 0; column < model.getColumnCount(); column++) {
+                model.getValueAt(row, column);
+            }
+        }
+    }
+
+    private static void bench(String name, int rows, List<String> selected, Operation operation) throws Exception {
+        if (selected != null && !selected.contains(name)) {
+            return;
+        }
+        repeat(operation, WARMUP_SECONDS, null);
+        long gcBefore = gcMillis();
+        long allocatedBefore = THREADS.getCurrentThreadAllocatedBytes();
+        List<Long> samples = new ArrayList<>();
+        long elapsed = repeat(operation, MEASURE_SECONDS, samples);
+        long allocated = THREADS.getCurrentThreadAllocatedBytes() - allocatedBefore;
+        long gc = gcMillis() - gcBefore;
+
+        long[] nanos = samples.stream().mapToLong(Long::longValue).sorted().toArray();
+        System.out.printf("%-20s %,11d %,12.1f %12.3f %12.3f %12.3f %10.2f %8d%n", name, rows,
+                nanos.length / (elapsed / 1e9), elapsed / 1e6 / nanos.length,
+                nanos[nanos.length / 2] / 1e6, nanos[(int) (nanos.length * 0.99)] / 1e6,
+                allocated / 1e6 / nanos.length, gc);
+    }
+
+    // Runs the operation for at least the given time and MIN_ITERATIONS times;
+    // returns the total time spent in it
+    private static long repeat(Operation operation, double seconds, List<Long> samples) throws Exception {
+        long budget = (long) (seconds * 1e9);
+        long total = 0;
+        for (int i = 0; total < budget || i < MIN_ITERATIONS; i++) {
+            long start = System.nanoTime();
+            operation.run();
+            long time = System.nanoTime() - start;
+            total += time;
+            if (samples != null) {
+                samples.add(time);
+            }
+        }
+        return total;
+    }
+
+    private static long gcMillis() {
+        long total = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += Math.max(0, gc.getCollectionTime());
+        }
+        return total;
+    }
+
+    // Ten years of pseudo-random expenses over a small set of categories and descriptions
+    private static ExpenseStore generate(int rows) {
+        Random random = new Random(42);
+        ExpenseStore store = new ExpenseStore();
+        for (int i = 0; i < rows; i++) {
+            // One row in ten thousand is a refund, for selective searches
+            String description = i % 10_000 == 0 ? "Refund" : DESCRIPTIONS[random.nextInt(DESCRIPTIONS.length)];
+            store.add(description, 18_000 + random.nextInt(3650),
+                    CATEGORIES[random.nextInt(CATEGORIES.length)], random.nextInt(1_000_000));
+        }
+        return store;
+    }
+}
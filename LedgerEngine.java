@@ -0,0 +1,532 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+
+// One user's ledger without any UI: the expense store, its aggregates and its
+// write-ahead journal. Safe for any number of concurrent readers and one writer
+// at a time. Each ledger has its own StampedLock: queries run under its read
+// lock, add and remove under its write lock, and scalar reads (size, grand
+// total) are optimistic, so they never block or contend with a writer.
+//
+// Mutations are applied in memory and return at once; their journal records are
+// appended in order on the engine's own I/O queue (a SerialExecutor on the pool
+// all ledgers share), followed by one coalesced sync. flush() waits until
+// everything queued so far is durable and rethrows the first write failure, if
+// any. Once close() has begun, changes throw IllegalStateException and leave the
+// ledger as it was.
+//
+// Budgets set with setBudgets() are checked against every change as it is made,
+// and the alerts it raises go to the budget listener once the write lock is
+// released, on the thread that made the change.
+//
+// With maintainTotalsFile(), the totals file is kept in step the same way: a
+// burst of changes queues one rewrite, which is skipped if the totals are those
+// already written. Imported rows reach the file only once commitImport() has
+// queued the snapshot that makes them durable.
+class LedgerEngine implements AutoCloseable {
+    private static final Metrics.Histogram OPEN_TIME = Metrics.histogram("ledger.open");
+
+    private final String snapshotPath;
+    private final ExpenseStore store;
+    private final ExpenseAggregates aggregates;
+    private final ExpenseJournal journal;
+    private final StampedLock lock = new StampedLock();
+    private final AtomicBoolean syncPending = new AtomicBoolean();
+    private final AtomicBoolean compactionPending = new AtomicBoolean();
+    private final AtomicBoolean totalsPending = new AtomicBoolean();
+    private volatile String totalsPath;
+    // Bumped under the write lock whenever the totals change
+    private long totalsVersion;
+    // Version in the totals file; I/O queue only
+    private long writtenTotalsVersion = -1;
+    // totalsVersion after the last importRows(), under the write lock, and
+    // after the last commitImport() snapshot written, on the I/O queue only;
+    // totals are not written while the first is ahead
+    private long importedTotalsVersion;
+    private long committedTotalsVersion;
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private final AtomicReference<Exception> writeFailure = new AtomicReference<>();
+    // Serial queue on the I/O pool shared by every open ledger
+    private final ExecutorService io = SerialExecutor.forIo();
+    private volatile Consumer<Exception> errorListener;
+    private volatile Consumer<BudgetMonitor.Alert> budgetListener;
+    private BudgetMonitor budgets;
+
+    private LedgerEngine(String snapshotPath, ExpenseJournal journal, ExpenseStore store) {
+        this.snapshotPath = snapshotPath;
+        this.journal = journal;
+        this.store = store;
+        ExpenseAggregates saved = LedgerPreview.readRollups(snapshotPath, ExpenseAggregates.fingerprint(store));
+        if (saved != null) {
+            aggregates = saved;
+        } else {
+            aggregates = new ExpenseAggregates();
+            aggregates.rebuild(store);
+        }
+    }
+
+    // Loads the ledger stored at snapshotPath (and its journal) on the calling thread.
+    // The rollups saved at the last close (see LedgerPreview) are reused if they
+    // still match the rows.
+    public static LedgerEngine open(String snapshotPath) throws IOException {
+        return open(snapshotPath, null);
+    }
+
+    public static LedgerEngine open(String snapshotPath, ParallelExpenseLoader.Progress progress) throws IOException {
+        long start = Metrics.start();
+        ExpenseJournal journal = new ExpenseJournal(snapshotPath);
+        ExpenseStore store = new ExpenseStore();
+        journal.load(store, progress);
+        LedgerEngine ledger = new LedgerEngine(snapshotPath, journal, store);
+        OPEN_TIME.recordSince(start);
+        return ledger;
+    }
+
+    // Told about each failed background write, on an I/O thread
+    public void setErrorListener(Consumer<Exception> errorListener) {
+        this.errorListener = errorListener;
+    }
+
+    // Told about each budget threshold reached, on the thread that made the change
+    public void setBudgetListener(Consumer<BudgetMonitor.Alert> budgetListener) {
+        this.budgetListener = budgetListener;
+    }
+
+    // Replaces the monitored budgets; spending so far is taken from the rollups,
+    // and only changes from now on raise alerts
+    public void setBudgets(List<BudgetMonitor.Budget> budgetList) {
+        long stamp = lock.writeLock();
+        try {
+            budgets = budgetList.isEmpty() ? null : new BudgetMonitor(budgetList, aggregates);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    public List<BudgetMonitor.Budget> getBudgets() {
+        return read(s -> budgets == null ? Collections.<BudgetMonitor.Budget>emptyList() : budgets.getBudgets());
+    }
+
+    // Spending of the budget in the day, month or year holding epochDay
+    public long getBudgetSpentPaise(BudgetMonitor.Budget budget, int epochDay) {
+        // The write lock, as the monitor may seed a counter
+        long stamp = lock.writeLock();
+        try {
+            if (budgets == null) {
+                throw new IllegalArgumentException("not a monitored budget: " + budget);
+            }
+            return budgets.getSpentPaise(budget, epochDay);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    public long getMalformedLines() {
+        return journal.getMalformedLines();
+    }
+
+    public List<String> getErrors() {
+        return journal.getErrors();
+    }
+
+    // Adds the expense and returns its id. Each expense is one line of the
+    // journal, so line breaks in it, or commas in its category, are rejected
+    // with an IllegalArgumentException.
+    public long add(Expense expense) {
+        checkStorable(expense.getDescription(), expense.getCategory());
+        List<BudgetMonitor.Alert> alerts;
+        long id;
+        boolean compact;
+        long stamp = lock.writeLock();
+        try {
+            checkOpen();
+            store.add(expense);
+            if (budgets != null) {
+                budgets.expenseAdded(expense);
+            }
+            aggregates.expenseAdded(expense);
+            compact = journal(Collections.singletonList(expense), true);
+            totalsChanged();
+            id = store.getId(store.size() - 1);
+            alerts = takeAlerts();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        if (compact) {
+            queueCompaction();
+        }
+        raise(alerts);
+        return id;
+    }
+
+    public long add(String description, int epochDay, String category, long amountPaise) {
+        return add(new Expense(description, ExpenseStore.toDate(epochDay), category, amountPaise));
+    }
+
+    // Removes the expenses with the given ids, skipping unknown ones, and returns
+    // them; the whole batch is one journal write
+    public List<Expense> remove(long... ids) {
+        List<Expense> removed = new ArrayList<>(ids.length);
+        boolean compact = false;
+        long stamp = lock.writeLock();
+        try {
+            checkOpen();
+            for (long id : ids) {
+                Expense expense = store.removeById(id);
+                if (expense != null) {
+                    if (budgets != null) {
+                        budgets.expenseRemoved(expense);
+                    }
+                    aggregates.expenseRemoved(expense);
+                    removed.add(expense);
+                }
+            }
+            if (!removed.isEmpty()) {
+                compact = journal(removed, false);
+                totalsChanged();
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        if (compact) {
+            queueCompaction();
+        }
+        return removed;
+    }
+
+    // Appends an imported batch under one write lock; the aggregates are updated
+    // once for the whole batch. The rows are not journaled: commitImport() writes
+    // them, with the rest of the ledger, as one new snapshot.
+    public void importRows(ExpenseStore batch) {
+        List<BudgetMonitor.Alert> alerts;
+        long stamp = lock.writeLock();
+        try {
+            checkOpen();
+            int first = store.size();
+            store.addAll(batch);
+            if (budgets != null) {
+                budgets.rowsAdded(store, first, store.size());
+            }
+            aggregates.rowsAdded(store, first, store.size());
+            totalsChanged();
+            importedTotalsVersion = totalsVersion;
+            alerts = takeAlerts();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        raise(alerts);
+    }
+
+    // Queues a snapshot of the whole ledger after the records queued so far, which
+    // makes the imported rows durable, then the totals rewrite held back since
+    // importRows(); flush() waits for them
+    public void commitImport() {
+        // The read lock keeps writers, and so their journal records, out meanwhile
+        long stamp = lock.readLock();
+        try {
+            checkOpen();
+            ExpenseStore snapshot = store.copy();
+            long version = totalsVersion;
+            io.execute(() -> runIo(() -> {
+                journal.rewriteSnapshot(snapshot, journal.isBinarySnapshot());
+                committedTotalsVersion = version;
+            }));
+            // Behind the snapshot even if a rewrite is already queued ahead of it
+            if (totalsPath != null) {
+                totalsPending.set(true);
+                io.execute(this::writeTotalsFile);
+            }
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    // Runs the query against the store under the read lock. The query must not
+    // modify the store, and views it returns are only safe to read while no
+    // other thread writes; read what you need inside the query instead.
+    public <T> T read(Function<ExpenseStore, T> query) {
+        long stamp = lock.readLock();
+        try {
+            return query.apply(store);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    // The expenses a view selects, in view order, e.g. query(s -> s.byCategory("Food"))
+    public List<Expense> query(Function<ExpenseStore, ExpenseView> view) {
+        return read(s -> {
+            ExpenseView rows = view.apply(s);
+            List<Expense> result = new ArrayList<>(rows.size());
+            for (int position = 0; position < rows.size(); position++) {
+                result.add(s.get(rows.getRow(position)));
+            }
+            return result;
+        });
+    }
+
+    public int size() {
+        return (int) readOptimistically(store::size);
+    }
+
+    public long getGrandTotalPaise() {
+        return readOptimistically(aggregates::getGrandTotalPaise);
+    }
+
+    // category -> yyyy-MM-dd -> total in paise; a copy
+    public Map<String, Map<String, Long>> getCategoryDateTotals() {
+        return read(s -> aggregates.getCategoryDateTotals());
+    }
+
+    public String formatSummary() {
+        return formatSummary(ExpenseAggregates.Granularity.DAY);
+    }
+
+    // The totals summary by day, month or year
+    public String formatSummary(ExpenseAggregates.Granularity granularity) {
+        return read(s -> ExpenseAggregates.formatSummary(aggregates.getTotals(granularity),
+                aggregates.getGrandTotalPaise()));
+    }
+
+    // category -> day, month or year label -> total in paise, for the buckets that
+    // overlap fromDay..toDay; answered from the rollups
+    public Map<String, Map<String, Long>> getTotals(ExpenseAggregates.Granularity granularity, int fromDay,
+                                                    int toDay) {
+        return read(s -> aggregates.getTotals(granularity, fromDay, toDay));
+    }
+
+    // Total of the category (every category if null) over fromDay..toDay inclusive
+    public long getTotal(String category, int fromDay, int toDay) {
+        return read(s -> aggregates.getTotal(category, fromDay, toDay));
+    }
+
+    // Keeps the totals file at path (see ExpenseAggregates.writeTotals) up to date
+    // from now on, rewriting it on the I/O queue once per batch of changes. The
+    // file is checked now too and rewritten unless its fingerprint matches the
+    // totals, as the ledger may have been changed without this engine.
+    public void maintainTotalsFile(String path) {
+        totalsPath = path;
+        queueTotalsWrite();
+    }
+
+    // Writes this ledger's totals file (see ExpenseAggregates.writeTotals) from a
+    // consistent copy of the totals; the file is written outside the lock
+    public void exportTotals(String path) throws IOException {
+        long[] grandTotal = new long[1];
+        Map<String, Map<String, Long>> totals = read(s -> {
+            grandTotal[0] = aggregates.getGrandTotalPaise();
+            return aggregates.getCategoryDateTotals();
+        });
+        ExpenseAggregates.writeTotals(path, totals, grandTotal[0]);
+    }
+
+    // Blocks until every change made so far is in the journal and synced
+    public void flush() throws IOException {
+        Future<?> done = io.submit(() -> runIo(journal::sync));
+        try {
+            done.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while flushing the ledger");
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+        Exception failure = writeFailure.getAndSet(null);
+        if (failure != null) {
+            throw failure instanceof IOException ? (IOException) failure : new IOException(failure);
+        }
+    }
+
+    // Flushes, stops the I/O queue and closes the journal, then saves the preview
+    // for the next open; later calls do nothing
+    @Override
+    public void close() throws IOException {
+        // Under the write lock, so a change either is queued before the I/O queue
+        // stops or is refused untouched
+        long stamp = lock.writeLock();
+        try {
+            if (!closed.compareAndSet(false, true)) {
+                return;
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+        try {
+            flush();
+        } finally {
+            io.shutdown();
+            try {
+                io.awaitTermination(30, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            journal.close();
+        }
+        // Only now are the ledger files final, as the preview's file stamp requires
+        stamp = lock.readLock();
+        try {
+            LedgerPreview.save(snapshotPath, store, aggregates);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    // Called under the lock before a change, so a closed ledger is left as it was
+    private void checkOpen() {
+        if (closed.get()) {
+            throw new IllegalStateException("Ledger is closed");
+        }
+    }
+
+    // Called under the write lock, so records are queued in the order they were
+    // applied. True if the journal is due for compaction and none is queued yet;
+    // the caller then calls queueCompaction() once the write lock is released.
+    private boolean journal(List<Expense> records, boolean added) {
+        io.execute(() -> runIo(() -> {
+            if (added) {
+                journal.recordAdds(records);
+            } else {
+                journal.recordDeletes(records);
+            }
+        }));
+        if (syncPending.compareAndSet(false, true)) {
+            io.execute(() -> {
+                syncPending.set(false);
+                runIo(journal::sync);
+            });
+        }
+        return journal.needsCompaction(store.size()) && compactionPending.compareAndSet(false, true);
+    }
+
+    // Copies the ledger for a compaction snapshot under the read lock, which keeps
+    // writers, and so their journal records, out while the copy is queued behind
+    // the records so far. Readers carry on meanwhile, and no writer holds the
+    // write lock through the copy.
+    private void queueCompaction() {
+        long stamp = lock.readLock();
+        try {
+            if (closed.get()) {
+                return;
+            }
+            ExpenseStore snapshot = store.copy();
+            io.execute(() -> runIo(() -> {
+                compactionPending.set(false);
+                // A failed background snapshot is reported like any other write
+                journal.compact(snapshot, e -> runIo(() -> {
+                    throw e;
+                }));
+            }));
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    private static void checkStorable(String description, String category) {
+        if (description.indexOf('\n') >= 0 || description.indexOf('\r') >= 0) {
+            throw new IllegalArgumentException("Description cannot contain line breaks");
+        }
+        if (category.indexOf(',') >= 0 || category.indexOf('\n') >= 0 || category.indexOf('\r') >= 0) {
+            throw new IllegalArgumentException("Category cannot contain commas or line breaks");
+        }
+    }
+
+    // Called under the write lock
+    private List<BudgetMonitor.Alert> takeAlerts() {
+        return budgets == null ? Collections.emptyList() : budgets.takeAlerts();
+    }
+
+    // Called after the write lock is released, so listeners may query the ledger
+    private void raise(List<BudgetMonitor.Alert> alerts) {
+        Consumer<BudgetMonitor.Alert> listener = budgetListener;
+        if (listener != null) {
+            for (BudgetMonitor.Alert alert : alerts) {
+                listener.accept(alert);
+            }
+        }
+    }
+
+    // Called under the write lock
+    private void totalsChanged() {
+        totalsVersion++;
+        queueTotalsWrite();
+    }
+
+    // Queues a totals rewrite unless one is queued and has not started yet,
+    // which will then pick this change up too
+    private void queueTotalsWrite() {
+        if (totalsPath != null && totalsPending.compareAndSet(false, true)) {
+            io.execute(this::writeTotalsFile);
+        }
+    }
+
+    // I/O queue: copies the totals under the read lock and writes them unless
+    // the file already holds this version, or on the first write, these totals.
+    // Skipped while imported rows are not yet in a snapshot; commitImport()
+    // queues another rewrite behind the snapshot.
+    private void writeTotalsFile() {
+        totalsPending.set(false);
+        long[] versionAndGrandTotal = new long[2];
+        Map<String, Map<String, Long>> totals = read(s -> {
+            if (importedTotalsVersion > committedTotalsVersion) {
+                return null;
+            }
+            versionAndGrandTotal[0] = totalsVersion;
+            versionAndGrandTotal[1] = aggregates.getGrandTotalPaise();
+            return aggregates.getCategoryDateTotals();
+        });
+        if (totals == null || versionAndGrandTotal[0] == writtenTotalsVersion) {
+            return;
+        }
+        if (writtenTotalsVersion == -1
+                && ExpenseAggregates.totalsFileMatches(totalsPath, totals, versionAndGrandTotal[1])) {
+            writtenTotalsVersion = versionAndGrandTotal[0];
+            return;
+        }
+        runIo(() -> {
+            ExpenseAggregates.writeTotals(totalsPath, totals, versionAndGrandTotal[1]);
+            writtenTotalsVersion = versionAndGrandTotal[0];
+        });
+    }
+
+    // Reads a single field without locking; retried under the read lock if a
+    // writer got in between
+    private long readOptimistically(LongSupplier field) {
+        long stamp = lock.tryOptimisticRead();
+        long value = field.getAsLong();
+        if (lock.validate(stamp)) {
+            return value;
+        }
+        stamp = lock.readLock();
+        try {
+            return field.getAsLong();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    private void runIo(PersistenceExecutor.IoTask task) {
+        try {
+            task.run();
+        } catch (Exception e) {
+            writeFailure.compareAndSet(null, e);
+            Metrics.failed(e);
+            Consumer<Exception> listener = errorListener;
+            if (listener != null) {
+                listener.accept(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,206 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Small HTTP front end over a LedgerService, for load-testing many concurrent
+// users. It listens on the loopback interface only and does not authenticate.
+// Requests are handled on a fixed pool of two threads per core.
+//
+//   GET    /ledgers/<user>/expenses[?category=..&from=yyyy-MM-dd&to=yyyy-MM-dd&limit=n]
+//            id,description,date,category,amount lines, by date (at most limit, default 1000)
+//   GET    /ledgers/<user>/expenses?q=words[&match=exact|prefix|fuzzy][&limit=n]
+//            the same lines for a description search (prefix by default), in the order added
+//   POST   /ledgers/<user>/expenses     body: description,yyyy-MM-dd,category,amount -> new id
+//   DELETE /ledgers/<user>/expenses/<id>
+//   GET    /ledgers/<user>/totals[?by=day|month|year]   the totals summary
+//   POST   /ledgers/<user>/totals       writes totals_<user>.txt
+//
+// Usage: java LedgerHttpServer [port (default 8080)] [directory (default .)]
+public class LedgerHttpServer {
+    private static final int DEFAULT_LIMIT = 1000;
+    private static final Metrics.Histogram REQUEST_TIME = Metrics.histogram("http.request");
+
+    private final LedgerService service;
+    private final HttpServer server;
+    private final ExecutorService handlers;
+
+    public LedgerHttpServer(LedgerService service, int port) throws IOException {
+        this.service = service;
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        handlers = Executors.newFixedThreadPool(2 * Runtime.getRuntime().availableProcessors());
+        server.setExecutor(handlers);
+        server.createContext("/ledgers/", this::handle);
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 8080;
+        Path directory = Paths.get(args.length > 1 ? args[1] : ".");
+        Metrics.startReporting();
+        LedgerService service = new LedgerService(directory);
+        LedgerHttpServer server = new LedgerHttpServer(service, port);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.stop();
+            try {
+                service.close();
+            } catch (IOException e) {
+                Metrics.failed(e);
+            }
+        }, "ledger-http-shutdown"));
+        server.start();
+        System.out.println("Serving ledgers from " + directory.toAbsolutePath() + " on http://localhost:"
+                + server.getPort() + "/ledgers/");
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    // Stops accepting requests and waits for the running ones
+    public void stop() {
+        server.stop(1);
+        handlers.shutdown();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        long start = Metrics.start();
+        try {
+            // "", "ledgers", user, resource[, id]
+            String[] path = exchange.getRequestURI().getPath().split("/");
+            if (path.length < 4 || path.length > 5) {
+                respond(exchange, 404, "Not found\n");
+                return;
+            }
+            LedgerEngine ledger = service.ledger(path[2]);
+            String method = exchange.getRequestMethod();
+            if (path[3].equals("expenses") && path.length == 4 && method.equals("GET")) {
+                respond(exchange, 200, listExpenses(ledger, query(exchange)));
+            } else if (path[3].equals("expenses") && path.length == 4 && method.equals("POST")) {
+                respond(exchange, 200, ledger.add(parseExpense(body(exchange))) + "\n");
+            } else if (path[3].equals("expenses") && path.length == 5 && method.equals("DELETE")) {
+                boolean removed = !ledger.remove(Long.parseLong(path[4])).isEmpty();
+                respond(exchange, removed ? 200 : 404, removed ? "Deleted\n" : "No such expense\n");
+            } else if (path[3].equals("totals") && path.length == 4 && method.equals("GET")) {
+                String by = query(exchange).getOrDefault("by", "day");
+                respond(exchange, 200, ledger.formatSummary(
+                        ExpenseAggregates.Granularity.valueOf(by.toUpperCase(Locale.ROOT))));
+            } else if (path[3].equals("totals") && path.length == 4 && method.equals("POST")) {
+                service.exportTotals(path[2]);
+                respond(exchange, 200, "Written\n");
+            } else {
+                respond(exchange, 404, "Not found\n");
+            }
+        } catch (IllegalArgumentException e) {
+            respond(exchange, 400, e.getMessage() + "\n");
+        } catch (IOException | RuntimeException e) {
+            Metrics.failed(e);
+            respond(exchange, 500, "Internal error\n");
+        } finally {
+            exchange.close();
+            REQUEST_TIME.recordSince(start);
+        }
+    }
+
+    private static String listExpenses(LedgerEngine ledger, Map<String, String> query) {
+        String search = query.get("q");
+        DescriptionIndex.Match match = DescriptionIndex.Match.valueOf(
+                query.getOrDefault("match", "prefix").toUpperCase(Locale.ROOT));
+        String category = query.get("category");
+        int fromDay = parseDay(query.get("from"), Integer.MIN_VALUE);
+        int toDay = parseDay(query.get("to"), Integer.MAX_VALUE);
+        int limit = query.containsKey("limit") ? Integer.parseInt(query.get("limit")) : DEFAULT_LIMIT;
+        return ledger.read(store -> {
+            ExpenseView view = search != null ? store.search(search, match)
+                    : category == null || category.isEmpty()
+                    ? store.byDateRange(fromDay, toDay) : store.byCategory(category, fromDay, toDay);
+            StringBuilder out = new StringBuilder();
+            for (int position = 0; position < Math.min(limit, view.size()); position++) {
+                int row = view.getRow(position);
+                out.append(store.getId(row)).append(',').append(store.getDescription(row)).append(',');
+                EpochDays.appendTo(out, store.getEpochDay(row)).append(',').append(store.getCategory(row)).append(',');
+                Money.appendTo(out, store.getAmountPaise(row)).append('\n');
+            }
+            return out.toString();
+        });
+    }
+
+    // description,yyyy-MM-dd,category,amount; the description may itself contain commas
+    private static Expense parseExpense(String line) {
+        String text = line.trim();
+        int amountComma = text.lastIndexOf(',');
+        int categoryComma = amountComma < 0 ? -1 : text.lastIndexOf(',', amountComma - 1);
+        int dateComma = categoryComma < 0 ? -1 : text.lastIndexOf(',', categoryComma - 1);
+        if (dateComma <= 0) {
+            throw new IllegalArgumentException("Expected description,yyyy-MM-dd,category,amount");
+        }
+        int epochDay = parseDay(text.substring(dateComma + 1, categoryComma), EpochDays.INVALID);
+        String category = text.substring(categoryComma + 1, amountComma);
+        if (epochDay == EpochDays.INVALID || category.isEmpty()) {
+            throw new IllegalArgumentException("Invalid date or category");
+        }
+        String description = text.substring(0, dateComma);
+        if (description.indexOf('\n') >= 0 || description.indexOf('\r') >= 0) {
+            throw new IllegalArgumentException("Description cannot contain line breaks");
+        }
+        long amountPaise = Money.parse(text.substring(amountComma + 1));
+        return new Expense(description, ExpenseStore.toDate(epochDay), category, amountPaise);
+    }
+
+    private static int parseDay(String text, int absent) {
+        if (text == null || text.isEmpty()) {
+            return absent;
+        }
+        int epochDay = EpochDays.parse(text);
+        if (epochDay == EpochDays.INVALID) {
+            throw new IllegalArgumentException("Invalid date: " + text);
+        }
+        return epochDay;
+    }
+
+    private static Map<String, String> query(HttpExchange exchange) {
+        Map<String, String> parameters = new HashMap<>();
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query != null) {
+            for (String pair : query.split("&")) {
+                int equals = pair.indexOf('=');
+                if (equals > 0) {
+                    parameters.put(URLDecoder.decode(pair.substring(0, equals), StandardCharsets.UTF_8),
+                            URLDecoder.decode(pair.substring(equals + 1), StandardCharsets.UTF_8));
+                }
+            }
+        }
+        return parameters;
+    }
+
+    private static String body(HttpExchange exchange) throws IOException {
+        try (InputStream in = exchange.getRequestBody()) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int status, String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
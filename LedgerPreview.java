@@ -0,0 +1,173 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+// A ledger as it was when last closed, saved next to it in <ledger>.rollups:
+//
+//   magic, fingerprint of the rows, stamp of the ledger files
+//   preview length, then the preview: row count, month rollup, RECENT_ROWS newest expenses
+//   day rollup
+//
+// The preview part stays small whatever the ledger size, so load() reads it in
+// a few milliseconds and a UI can show the totals and latest page before the
+// full ledger is loaded; it is only returned if the ledger files are untouched
+// since. LedgerEngine skips to the day rollup and reuses it when the loaded rows
+// match the fingerprint. Immutable once read.
+final class LedgerPreview {
+    static final int RECENT_ROWS = 200;
+
+    private static final String SUFFIX = ".rollups";
+    private static final int FILE_MAGIC = 0x524f4c32; // "ROL2"
+    private static final Metrics.Histogram LOAD_TIME = Metrics.histogram("preview.load");
+
+    private final int size;
+    private final ExpenseAggregates aggregates;
+    private final ExpenseStore recent;
+
+    private LedgerPreview(int size, ExpenseAggregates aggregates, ExpenseStore recent) {
+        this.size = size;
+        this.aggregates = aggregates;
+        this.recent = recent;
+    }
+
+    // The preview of the ledger at snapshotPath, or null if there is none or the
+    // ledger was written since it was saved
+    public static LedgerPreview load(String snapshotPath) {
+        long start = Metrics.start();
+        try (DataInputStream in = open(snapshotPath)) {
+            if (in.readInt() != FILE_MAGIC) {
+                return null;
+            }
+            in.readLong();
+            if (in.readLong() != ExpenseJournal.fileStamp(snapshotPath)) {
+                return null;
+            }
+            in.readInt();
+            int size = in.readInt();
+            ExpenseAggregates aggregates = new ExpenseAggregates();
+            aggregates.readFrom(in, ExpenseAggregates.Granularity.MONTH);
+            ExpenseStore recent = new ExpenseStore();
+            for (int rows = in.readInt(); rows > 0; rows--) {
+                String description = in.readUTF();
+                int epochDay = in.readInt();
+                String category = in.readUTF();
+                recent.add(description, epochDay, category, in.readLong());
+            }
+            LOAD_TIME.recordSince(start);
+            return new LedgerPreview(size, aggregates, recent);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            Metrics.failed(e);
+            return null;
+        }
+    }
+
+    // The full rollups saved for exactly the rows with this fingerprint; null if
+    // missing, unreadable or saved for different rows
+    static ExpenseAggregates readRollups(String snapshotPath, long fingerprint) {
+        try (DataInputStream in = open(snapshotPath)) {
+            if (in.readInt() != FILE_MAGIC || in.readLong() != fingerprint) {
+                return null;
+            }
+            in.readLong();
+            in.skipNBytes(in.readInt());
+            ExpenseAggregates aggregates = new ExpenseAggregates();
+            aggregates.readFrom(in, ExpenseAggregates.Granularity.DAY);
+            return aggregates;
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            Metrics.failed(e);
+            return null;
+        }
+    }
+
+    // Writes the file atomically. The store and aggregates must not change
+    // meanwhile, and the ledger files must already be in their final state.
+    static void save(String snapshotPath, ExpenseStore store, ExpenseAggregates aggregates) throws IOException {
+        ByteArrayOutputStream previewBytes = new ByteArrayOutputStream();
+        DataOutputStream preview = new DataOutputStream(previewBytes);
+        preview.writeInt(store.size());
+        aggregates.writeTo(preview, ExpenseAggregates.Granularity.MONTH);
+        int[] rows = newestRows(store);
+        preview.writeInt(rows.length);
+        for (int row : rows) {
+            preview.writeUTF(store.getDescription(row));
+            preview.writeInt(store.getEpochDay(row));
+            preview.writeUTF(store.getCategory(row));
+            preview.writeLong(store.getAmountPaise(row));
+        }
+
+        Path file = Paths.get(snapshotPath + SUFFIX);
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileOutputStream fileOut = new FileOutputStream(tmp.toFile());
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut))) {
+            out.writeInt(FILE_MAGIC);
+            out.writeLong(ExpenseAggregates.fingerprint(store));
+            out.writeLong(ExpenseJournal.fileStamp(snapshotPath));
+            out.writeInt(previewBytes.size());
+            previewBytes.writeTo(out);
+            aggregates.writeTo(out, ExpenseAggregates.Granularity.DAY);
+            out.flush();
+            fileOut.getChannel().force(true);
+        }
+        Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    // Number of expenses in the ledger, of which getRecent() holds the newest
+    public int size() {
+        return size;
+    }
+
+    // The newest expenses by date, oldest first, in a store of their own
+    public ExpenseStore getRecent() {
+        return recent;
+    }
+
+    public long getGrandTotalPaise() {
+        return aggregates.getGrandTotalPaise();
+    }
+
+    // The totals summary by month or year, as LedgerEngine.formatSummary. Only the
+    // full ledger has day totals, so DAY is summarized by month.
+    public String formatSummary(ExpenseAggregates.Granularity granularity) {
+        ExpenseAggregates.Granularity shown = granularity == ExpenseAggregates.Granularity.DAY
+                ? ExpenseAggregates.Granularity.MONTH : granularity;
+        return ExpenseAggregates.formatSummary(aggregates.getTotals(shown), aggregates.getGrandTotalPaise());
+    }
+
+    private static DataInputStream open(String snapshotPath) throws IOException {
+        return new DataInputStream(new BufferedInputStream(Files.newInputStream(Paths.get(snapshotPath + SUFFIX))));
+    }
+
+    // The RECENT_ROWS latest rows by date (later rows first among equal dates) in
+    // date order; one pass with a small heap instead of sorting the ledger
+    private static int[] newestRows(ExpenseStore store) {
+        Comparator<Integer> byDate = Comparator.<Integer>comparingInt(store::getEpochDay).thenComparingInt(row -> row);
+        PriorityQueue<Integer> newest = new PriorityQueue<>(RECENT_ROWS, byDate);
+        for (int row = 0; row < store.size(); row++) {
+            if (newest.size() < RECENT_ROWS) {
+                newest.add(row);
+            } else if (store.getEpochDay(row) >= store.getEpochDay(newest.peek())) {
+                newest.poll();
+                newest.add(row);
+            }
+        }
+        Integer[] rows = newest.toArray(new Integer[0]);
+        Arrays.sort(rows, byDate);
+        return Arrays.stream(rows).mapToInt(Integer::intValue).toArray();
+    }
+}
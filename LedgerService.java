@@ -0,0 +1,185 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Pattern;
+
+// Hosts the ledgers of many users in one JVM. Each user's LedgerEngine is opened
+// on first use and has its own lock, journal and totals, so sessions of different
+// users never contend with or overwrite each other; only the map lookup is shared.
+//
+// Files use the desktop app's names in the given directory: expenses_<user> (plus
+// its journal) and totals_<user>.txt.
+//
+// A ledger not asked for during the idle timeout is closed and dropped, so memory
+// is held only for active users; the next call opens it again. close(user) drops
+// one at once. A closing ledger stays in the map until its files are closed, and
+// ledger() waits for that before opening them again, so two engines never write
+// one journal. Ledgers' I/O runs on a pool shared by all of them (SerialExecutor).
+class LedgerService implements AutoCloseable {
+    private static final Pattern USERNAME = Pattern.compile("[A-Za-z0-9_-][A-Za-z0-9._-]*");
+    private static final long DEFAULT_IDLE_MILLIS = TimeUnit.MINUTES.toMillis(15);
+
+    private static final class OpenLedger {
+        final CompletableFuture<LedgerEngine> ledger = new CompletableFuture<>();
+        // Set by the one caller that closes it; completed once it is out of the map
+        final AtomicBoolean closing = new AtomicBoolean();
+        final CompletableFuture<Void> closed = new CompletableFuture<>();
+        volatile long lastUsedNanos = System.nanoTime();
+    }
+
+    private final Path directory;
+    private final long idleNanos;
+    private final ConcurrentHashMap<String, OpenLedger> ledgers = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "ledger-evictor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public LedgerService(Path directory) {
+        this(directory, DEFAULT_IDLE_MILLIS);
+    }
+
+    // Ledgers unused for idleMillis are closed. A caller must not keep using a
+    // ledger past that without calling ledger() again.
+    public LedgerService(Path directory, long idleMillis) {
+        this.directory = directory;
+        this.idleNanos = TimeUnit.MILLISECONDS.toNanos(idleMillis);
+        long period = Math.max(1, idleMillis / 4);
+        evictor.scheduleWithFixedDelay(this::closeIdle, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    // The user's ledger, loading it if this is its first use. Concurrent first
+    // calls for the same user wait for a single load, and a call while the
+    // ledger is closing waits for it to close and then loads it again.
+    public LedgerEngine ledger(String username) throws IOException {
+        if (!USERNAME.matcher(username).matches()) {
+            throw new IllegalArgumentException("Invalid username: " + username);
+        }
+        while (true) {
+            OpenLedger opening = new OpenLedger();
+            OpenLedger existing = ledgers.putIfAbsent(username, opening);
+            if (existing == null) {
+                try {
+                    opening.ledger.complete(LedgerEngine.open(directory.resolve("expenses_" + username).toString()));
+                } catch (IOException | RuntimeException e) {
+                    ledgers.remove(username, opening);
+                    opening.ledger.completeExceptionally(e);
+                    throw e;
+                }
+                return opening.ledger.join();
+            }
+            try {
+                if (existing.closing.get()) {
+                    existing.closed.get();
+                    continue;
+                }
+                existing.lastUsedNanos = System.nanoTime();
+                return existing.ledger.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while loading the ledger of " + username, e);
+            } catch (ExecutionException e) {
+                throw new IOException("Could not load the ledger of " + username, e.getCause());
+            }
+        }
+    }
+
+    // Writes the user's totals_<user>.txt
+    public void exportTotals(String username) throws IOException {
+        ledger(username).exportTotals(directory.resolve("totals_" + username + ".txt").toString());
+    }
+
+    // Closes the user's ledger if it is open, or once it has loaded if it is
+    // loading; the next ledger() call reopens it
+    public void close(String username) throws IOException {
+        OpenLedger open = ledgers.get(username);
+        if (open != null) {
+            close(username, open);
+        }
+    }
+
+    // Makes every open ledger's changes durable
+    public void flushAll() throws IOException {
+        for (LedgerEngine ledger : openLedgers()) {
+            ledger.flush();
+        }
+    }
+
+    // Closes every ledger, waiting for those still loading; the first failure is
+    // rethrown after all were tried
+    @Override
+    public void close() throws IOException {
+        evictor.shutdown();
+        IOException failure = null;
+        for (Map.Entry<String, OpenLedger> entry : ledgers.entrySet()) {
+            try {
+                close(entry.getKey(), entry.getValue());
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private List<LedgerEngine> openLedgers() {
+        List<LedgerEngine> open = new ArrayList<>();
+        for (OpenLedger ledger : ledgers.values()) {
+            if (ledger.ledger.isDone() && !ledger.ledger.isCompletedExceptionally() && !ledger.closing.get()) {
+                open.add(ledger.ledger.join());
+            }
+        }
+        return open;
+    }
+
+    private void closeIdle() {
+        long now = System.nanoTime();
+        for (Map.Entry<String, OpenLedger> entry : ledgers.entrySet()) {
+            OpenLedger open = entry.getValue();
+            if (now - open.lastUsedNanos >= idleNanos && open.ledger.isDone()) {
+                try {
+                    close(entry.getKey(), open);
+                } catch (IOException e) {
+                    Metrics.failed(e);
+                }
+            }
+        }
+    }
+
+    // Closes the entry's engine, once loaded, and only then drops the entry and
+    // lets waiting ledger() calls reopen it. Only the first caller closes; others
+    // return at once.
+    private void close(String username, OpenLedger open) throws IOException {
+        if (!open.closing.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            LedgerEngine ledger;
+            try {
+                ledger = open.ledger.join();
+            } catch (CompletionException | CancellationException e) {
+                // The load failed and its caller was told
+                return;
+            }
+            ledger.close();
+        } finally {
+            ledgers.remove(username, open);
+            open.closed.complete(null);
+        }
+    }
+}
@@ -0,0 +1,311 @@
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.awt.AWTEvent;
+import java.awt.EventQueue;
+import java.awt.Toolkit;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// Latency histograms and counters for the hot paths (loading, journal writes,
+// snapshots, totals, UI refreshes, event dispatch). Off unless the JVM runs with
+// -Dexpensetracker.metrics=true; when off, start() and the record methods return
+// at once on a constant, so instrumented code pays nothing measurable.
+//
+// Classes keep their histograms and counters in static fields:
+//
+//   private static final Metrics.Histogram LOAD_TIME = Metrics.histogram("journal.load");
+//   long start = Metrics.start();
+//   ...
+//   LOAD_TIME.recordSince(start);
+//
+// startReporting() publishes every metric as an MBean under "ExpenseTracker:" and
+// logs a summary every -Dexpensetracker.metrics.interval seconds (default 60)
+// and at exit.
+final class Metrics {
+    static final boolean ENABLED = Boolean.getBoolean("expensetracker.metrics");
+
+    private static final long REPORT_SECONDS = Long.getLong("expensetracker.metrics.interval", 60);
+    // Event dispatches at least this long count as time the EDT was blocked
+    private static final long EDT_BLOCKED_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+    private static final Logger LOG = Logger.getLogger("ExpenseTracker.metrics");
+
+    private static final Map<String, Histogram> HISTOGRAMS = new TreeMap<>();
+    private static final Map<String, Counter> COUNTERS = new TreeMap<>();
+    private static MBeanServer mbeans;
+
+    private static final Counter FAILURES = counter("failures");
+    private static final Histogram EDT_DISPATCH = histogram("edt.dispatch");
+    private static final Counter EDT_BLOCKED_MILLIS = counter("edt.blockedMillis");
+
+    private Metrics() {
+    }
+
+    public interface HistogramMBean {
+        long getCount();
+
+        double getMeanMillis();
+
+        double getP50Millis();
+
+        double getP90Millis();
+
+        double getP99Millis();
+
+        double getP999Millis();
+
+        double getMaxMillis();
+
+        void reset();
+    }
+
+    public interface CounterMBean {
+        long getValue();
+    }
+
+    // HdrHistogram-style latency histogram in nanoseconds: 64 linear sub-buckets
+    // per power of two, so any value is off by less than 1/64 (about 1.6%) from
+    // what was recorded, over the whole range from 1 ns up. Recording is one
+    // array increment and never allocates; any thread may record.
+    static final class Histogram implements HistogramMBean {
+        private static final int SUB_BUCKET_BITS = 6;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+        private final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BUCKET_BITS) * SUB_BUCKETS + SUB_BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        public void recordSince(long start) {
+            if (ENABLED) {
+                recordNanos(System.nanoTime() - start);
+            }
+        }
+
+        public void recordNanos(long nanos) {
+            if (!ENABLED || nanos < 0) {
+                return;
+            }
+            counts.incrementAndGet(index(nanos));
+            count.increment();
+            totalNanos.add(nanos);
+            maxNanos.accumulateAndGet(nanos, Math::max);
+        }
+
+        @Override
+        public long getCount() {
+            return count.sum();
+        }
+
+        @Override
+        public double getMeanMillis() {
+            long n = count.sum();
+            return n == 0 ? 0 : totalNanos.sum() / 1e6 / n;
+        }
+
+        @Override
+        public double getP50Millis() {
+            return percentileNanos(50) / 1e6;
+        }
+
+        @Override
+        public double getP90Millis() {
+            return percentileNanos(90) / 1e6;
+        }
+
+        @Override
+        public double getP99Millis() {
+            return percentileNanos(99) / 1e6;
+        }
+
+        @Override
+        public double getP999Millis() {
+            return percentileNanos(99.9) / 1e6;
+        }
+
+        @Override
+        public double getMaxMillis() {
+            return maxNanos.get() / 1e6;
+        }
+
+        @Override
+        public void reset() {
+            for (int i = 0; i < counts.length(); i++) {
+                counts.set(i, 0);
+            }
+            count.reset();
+            totalNanos.reset();
+            maxNanos.set(0);
+        }
+
+        // Upper end of the bucket holding the value at the percentile; 0 if empty
+        long percentileNanos(double percentile) {
+            long total = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                total += counts.get(i);
+            }
+            long rank = (long) Math.ceil(total * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                seen += counts.get(i);
+                if (seen >= Math.max(1, rank)) {
+                    return Math.min(highestEquivalent(i), maxNanos.get());
+                }
+            }
+            return 0;
+        }
+
+        // Values below 2 * SUB_BUCKETS map to themselves; above, each power of two
+        // is split into SUB_BUCKETS equal steps
+        private static int index(long value) {
+            int shift = Math.max(0, 63 - Long.numberOfLeadingZeros(value | (2 * SUB_BUCKETS - 1)) - SUB_BUCKET_BITS);
+            return shift * SUB_BUCKETS + (int) (value >>> shift);
+        }
+
+        private static long highestEquivalent(int index) {
+            int shift = Math.max(0, index / SUB_BUCKETS - 1);
+            long subBucket = index - (long) shift * SUB_BUCKETS;
+            return ((subBucket + 1) << shift) - 1;
+        }
+    }
+
+    static final class Counter implements CounterMBean {
+        private final LongAdder value = new LongAdder();
+
+        public void add(long delta) {
+            if (ENABLED) {
+                value.add(delta);
+            }
+        }
+
+        public void increment() {
+            add(1);
+        }
+
+        @Override
+        public long getValue() {
+            return value.sum();
+        }
+    }
+
+    // The histogram with this name, created on first use
+    static synchronized Histogram histogram(String name) {
+        Histogram histogram = HISTOGRAMS.get(name);
+        if (histogram == null) {
+            histogram = new Histogram();
+            HISTOGRAMS.put(name, histogram);
+            register("Latency", name, histogram, HistogramMBean.class);
+        }
+        return histogram;
+    }
+
+    // The counter with this name, created on first use
+    static synchronized Counter counter(String name) {
+        Counter counter = COUNTERS.get(name);
+        if (counter == null) {
+            counter = new Counter();
+            COUNTERS.put(name, counter);
+            register("Counter", name, counter, CounterMBean.class);
+        }
+        return counter;
+    }
+
+    // Start time for Histogram.recordSince; 0 when metrics are off
+    static long start() {
+        return ENABLED ? System.nanoTime() : 0;
+    }
+
+    // Counts a failure that is handled by logging it, and logs it
+    static void failed(Exception e) {
+        FAILURES.increment();
+        LOG.log(Level.WARNING, "Failed: " + e, e);
+    }
+
+    // Publishes the metrics over JMX and starts the periodic log dump; does
+    // nothing when metrics are off or reporting has started already
+    static synchronized void startReporting() {
+        if (!ENABLED || mbeans != null) {
+            return;
+        }
+        mbeans = ManagementFactory.getPlatformMBeanServer();
+        HISTOGRAMS.forEach((name, histogram) -> register("Latency", name, histogram, HistogramMBean.class));
+        COUNTERS.forEach((name, counter) -> register("Counter", name, counter, CounterMBean.class));
+
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "metrics-reporter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reporter.scheduleAtFixedRate(() -> LOG.info(dump()), REPORT_SECONDS, REPORT_SECONDS, TimeUnit.SECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> LOG.info(dump()), "metrics-final-dump"));
+    }
+
+    // Times every event the EDT dispatches, into edt.dispatch, and adds the time of
+    // those taking EDT_BLOCKED_NANOS or more to edt.blockedMillis
+    static void monitorEventQueue() {
+        if (ENABLED) {
+            Toolkit.getDefaultToolkit().getSystemEventQueue().push(new EventQueue() {
+                @Override
+                protected void dispatchEvent(AWTEvent event) {
+                    long start = System.nanoTime();
+                    try {
+                        super.dispatchEvent(event);
+                    } finally {
+                        long nanos = System.nanoTime() - start;
+                        EDT_DISPATCH.recordNanos(nanos);
+                        if (nanos >= EDT_BLOCKED_NANOS) {
+                            EDT_BLOCKED_MILLIS.add(TimeUnit.NANOSECONDS.toMillis(nanos));
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    // One line per metric that has been used
+    static synchronized String dump() {
+        StringBuilder out = new StringBuilder("Metrics (latencies in ms):");
+        List<String> lines = new ArrayList<>();
+        HISTOGRAMS.forEach((name, histogram) -> {
+            if (histogram.getCount() > 0) {
+                lines.add(String.format("%-24s count %,d  mean %.3f  p50 %.3f  p90 %.3f  p99 %.3f  p99.9 %.3f  max %.3f",
+                        name, histogram.getCount(), histogram.getMeanMillis(), histogram.getP50Millis(),
+                        histogram.getP90Millis(), histogram.getP99Millis(), histogram.getP999Millis(),
+                        histogram.getMaxMillis()));
+            }
+        });
+        COUNTERS.forEach((name, counter) -> {
+            if (counter.getValue() > 0) {
+                lines.add(String.format("%-24s %,d", name, counter.getValue()));
+            }
+        });
+        for (String line : lines) {
+            out.append("\n  ").append(line);
+        }
+        return out.toString();
+    }
+
+    private static <T> void register(String type, String name, T metric, Class<T> mbeanInterface) {
+        if (mbeans == null) {
+            return;
+        }
+        try {
+            mbeans.registerMBean(new StandardMBean(metric, mbeanInterface),
+                    new ObjectName("ExpenseTracker:type=" + type + ",name=" + ObjectName.quote(name)));
+        } catch (JMException e) {
+            failed(e);
+        }
+    }
+}
@@ -0,0 +1,160 @@
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
+
+// Fixed-point rupee amounts held as a long number of paise. Plain decimal input
+// with up to two fraction digits is parsed without allocating; anything else
+// (exponents, extra fraction digits from older files) goes through BigDecimal
+// and is rounded half-up to the paisa.
+final class Money {
+    private static final int MAX_FAST_DIGITS = 17;
+    // Longer input is rejected before it reaches BigDecimal
+    private static final int MAX_SLOW_CHARS = 64;
+
+    private Money() {
+    }
+
+    public static long parse(CharSequence text) {
+        return parse(text, 0, text.length());
+    }
+
+    public static long parse(CharSequence text, int start, int end) {
+        while (start < end && text.charAt(start) == ' ') {
+            start++;
+        }
+        while (end > start && text.charAt(end - 1) == ' ') {
+            end--;
+        }
+        if (start == end) {
+            throw new NumberFormatException("Empty amount");
+        }
+
+        int i = start;
+        boolean negative = false;
+        char first = text.charAt(i);
+        if (first == '-' || first == '+') {
+            negative = first == '-';
+            i++;
+        }
+
+        long value = 0;
+        int digits = 0;
+        int fractionDigits = -1;
+        for (; i < end; i++) {
+            char c = text.charAt(i);
+            if (c >= '0' && c <= '9') {
+                value = value * 10 + (c - '0');
+                digits++;
+                if (fractionDigits >= 0) {
+                    fractionDigits++;
+                }
+            } else if (c == '.' && fractionDigits < 0) {
+                fractionDigits = 0;
+            } else {
+                return parseSlow(text, start, end);
+            }
+        }
+        if (digits == 0) {
+            throw new NumberFormatException("Invalid amount: " + text.subSequence(start, end));
+        }
+        if (fractionDigits > 2 || digits > MAX_FAST_DIGITS) {
+            return parseSlow(text, start, end);
+        }
+        for (int scale = Math.max(fractionDigits, 0); scale < 2; scale++) {
+            value *= 10;
+        }
+        return negative ? -value : value;
+    }
+
+    // Same rules as parse(CharSequence) over ASCII bytes, for the file parsers
+    public static long parse(byte[] buffer, int start, int end) {
+        while (start < end && buffer[start] == ' ') {
+            start++;
+        }
+        while (end > start && buffer[end - 1] == ' ') {
+            end--;
+        }
+        if (start == end) {
+            throw new NumberFormatException("Empty amount");
+        }
+
+        int i = start;
+        boolean negative = false;
+        if (buffer[i] == '-' || buffer[i] == '+') {
+            negative = buffer[i] == '-';
+            i++;
+        }
+
+        long value = 0;
+        int digits = 0;
+        int fractionDigits = -1;
+        for (; i < end; i++) {
+            byte b = buffer[i];
+            if (b >= '0' && b <= '9') {
+                value = value * 10 + (b - '0');
+                digits++;
+                if (fractionDigits >= 0) {
+                    fractionDigits++;
+                }
+            } else if (b == '.' && fractionDigits < 0) {
+                fractionDigits = 0;
+            } else {
+                return parseSlow(new String(buffer, start, end - start, StandardCharsets.ISO_8859_1), 0, end - start);
+            }
+        }
+        if (digits == 0) {
+            throw new NumberFormatException("Invalid amount");
+        }
+        if (fractionDigits > 2 || digits > MAX_FAST_DIGITS) {
+            return parseSlow(new String(buffer, start, end - start, StandardCharsets.ISO_8859_1), 0, end - start);
+        }
+        for (int scale = Math.max(fractionDigits, 0); scale < 2; scale++) {
+            value *= 10;
+        }
+        return negative ? -value : value;
+    }
+
+    public static String format(long paise) {
+        return appendTo(new StringBuilder(24), paise).toString();
+    }
+
+    // Appends the amount as [-]rupees.paise with exactly two fraction digits
+    public static StringBuilder appendTo(StringBuilder builder, long paise) {
+        long rupees = paise / 100;
+        int fraction = (int) Math.abs(paise % 100);
+        if (paise < 0 && rupees == 0) {
+            builder.append('-');
+        }
+        builder.append(rupees).append('.');
+        if (fraction < 10) {
+            builder.append('0');
+        }
+        return builder.append(fraction);
+    }
+
+    // Bounded before setScale, which would build a number with as many digits as
+    // an exponent like 1e999999999 asks for
+    private static long parseSlow(CharSequence text, int start, int end) {
+        if (end - start > MAX_SLOW_CHARS) {
+            throw new NumberFormatException("Amount out of range: "
+                    + text.subSequence(start, start + MAX_SLOW_CHARS) + "...");
+        }
+        try {
+            BigDecimal amount = new BigDecimal(text.subSequence(start, end).toString());
+            // Digits left of the point; a long of paise has room for 17
+            long integerDigits = (long) amount.precision() - amount.scale();
+            if (amount.signum() == 0 || integerDigits < -2) {
+                // Below 0.001, which rounds to zero paise
+                return 0;
+            }
+            if (integerDigits > MAX_FAST_DIGITS) {
+                throw new ArithmeticException();
+            }
+            return amount.setScale(2, RoundingMode.HALF_UP)
+                    .unscaledValue()
+                    .longValueExact();
+        } catch (ArithmeticException e) {
+            throw new NumberFormatException("Amount out of range: " + text.subSequence(start, end));
+        }
+    }
+}
@@ -0,0 +1,135 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Loads a large expenses file by splitting it at newline boundaries and parsing
+// the chunks, memory-mapped where FileRegions allows, in parallel on the common
+// ForkJoinPool.
+// Each chunk fills its own ExpenseStore; the chunks are then appended to the
+// target in file order, so the result matches a sequential load.
+class ParallelExpenseLoader {
+    // Files smaller than this load faster with the plain streaming parser
+    static final long MIN_PARALLEL_BYTES = 8L << 20;
+
+    private static final long MIN_CHUNK_BYTES = 1L << 20;
+    private static final long MAX_CHUNK_BYTES = 1L << 30;
+    private static final int CHUNKS_PER_THREAD = 4;
+
+    interface Progress {
+        void update(long bytesDone, long bytesTotal);
+    }
+
+    private static final class Chunk {
+        final long start;
+        final long end;
+        final ExpenseStore expenses = new ExpenseStore();
+        final ExpenseFileParser parser = new ExpenseFileParser(false);
+
+        Chunk(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    private final long malformedLines;
+    private final List<String> errors;
+
+    private ParallelExpenseLoader(long malformedLines, List<String> errors) {
+        this.malformedLines = malformedLines;
+        this.errors = errors;
+    }
+
+    public long getMalformedLines() {
+        return malformedLines;
+    }
+
+    public List<String> getErrors() {
+        return errors;
+    }
+
+    public static ParallelExpenseLoader load(Path file, ExpenseStore target, Progress progress) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            List<Chunk> chunks = split(channel, size);
+            AtomicLong bytesDone = new AtomicLong();
+
+            List<ForkJoinTask<Void>> tasks = new ArrayList<>(chunks.size());
+            for (Chunk chunk : chunks) {
+                tasks.add(ForkJoinPool.commonPool().submit(() -> {
+                    ByteBuffer buffer = FileRegions.read(channel, chunk.start, chunk.end - chunk.start);
+                    chunk.parser.parse(buffer, (op, description, epochDay, category, amountPaise) ->
+                            chunk.expenses.add(description, epochDay, category, amountPaise), read -> {
+                        if (progress != null) {
+                            progress.update(bytesDone.addAndGet(read), size);
+                        }
+                    });
+                    return null;
+                }));
+            }
+
+            long malformedLines = 0;
+            long firstLine = 1;
+            List<String> errors = new ArrayList<>();
+            for (int i = 0; i < chunks.size(); i++) {
+                Chunk chunk = chunks.get(i);
+                try {
+                    tasks.get(i).get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while loading " + file, e);
+                } catch (ExecutionException e) {
+                    throw new IOException("Failed to load " + file, e.getCause());
+                }
+                target.addAll(chunk.expenses);
+                chunk.parser.setFirstLineNumber(firstLine);
+                firstLine += chunk.parser.getLineCount();
+                malformedLines += chunk.parser.getMalformedLines();
+                errors.addAll(chunk.parser.getErrors());
+            }
+            return new ParallelExpenseLoader(malformedLines, errors);
+        }
+    }
+
+    // Cuts the file into roughly equal chunks, moving each cut just past a newline
+    private static List<Chunk> split(FileChannel channel, long size) throws IOException {
+        int parallelism = ForkJoinPool.getCommonPoolParallelism();
+        long chunkBytes = Math.max(MIN_CHUNK_BYTES, size / ((long) parallelism * CHUNKS_PER_THREAD));
+        chunkBytes = Math.min(chunkBytes, MAX_CHUNK_BYTES);
+
+        List<Chunk> chunks = new ArrayList<>();
+        ByteBuffer probe = ByteBuffer.allocate(4096);
+        long start = 0;
+        while (start < size) {
+            long end = Math.min(size, start + chunkBytes);
+            // Scan forward to the end of the line the cut falls in
+            scan:
+            while (end < size) {
+                probe.clear();
+                int read = channel.read(probe, end);
+                if (read <= 0) {
+                    end = size;
+                    break;
+                }
+                for (int i = 0; i < read; i++) {
+                    if (probe.get(i) == '\n') {
+                        end += i + 1;
+                        break scan;
+                    }
+                }
+                end += read;
+            }
+            end = Math.min(end, size);
+            chunks.add(new Chunk(start, end));
+            start = end;
+        }
+        return chunks;
+    }
+}
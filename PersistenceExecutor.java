@@ -0,0 +1,58 @@
+import javax.swing.SwingUtilities;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+// Runs all disk I/O on one writer thread so the EDT never waits on the disk.
+// Tasks run in submission order; results and failures are delivered back on
+// the EDT. shutdown() drains pending work; the owner calls it when the JVM exits.
+class PersistenceExecutor {
+    // Time tasks wait behind earlier ones, and time they take to run
+    private static final Metrics.Histogram WAIT_TIME = Metrics.histogram("persistence.wait");
+    private static final Metrics.Histogram TASK_TIME = Metrics.histogram("persistence.task");
+
+    interface IoTask {
+        void run() throws Exception;
+    }
+
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "expense-persistence");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Runs task on the writer thread and hands its result to onSuccess on the EDT
+    public <T> void submit(Callable<T> task, Consumer<T> onSuccess, Consumer<Exception> onFailure) {
+        long queued = Metrics.start();
+        writer.execute(() -> {
+            WAIT_TIME.recordSince(queued);
+            long start = Metrics.start();
+            try {
+                T result = task.call();
+                TASK_TIME.recordSince(start);
+                SwingUtilities.invokeLater(() -> onSuccess.accept(result));
+            } catch (Exception e) {
+                fail(e, onFailure);
+            }
+        });
+    }
+
+    // Finishes queued work, waiting up to 30 seconds
+    public void shutdown() {
+        writer.shutdown();
+        try {
+            writer.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void fail(Exception e, Consumer<Exception> onFailure) {
+        Metrics.failed(e);
+        if (onFailure != null) {
+            SwingUtilities.invokeLater(() -> onFailure.accept(e));
+        }
+    }
+}
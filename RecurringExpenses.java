@@ -0,0 +1,483 @@
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Expenses that repeat on a schedule, one rule per line:
+//
+//   monthly 1 from 2024-01-01 15000 Rent -> Housing
+//   monthly last from 2023-04-30 until 2026-03-31 8250.50 Car loan EMI -> EMI
+//   weekly sat from 2024-01-06 1200 Groceries -> Food
+//   daily from 2024-03-01 until 2024-03-31 60 Metro -> Travel
+//   cron 1,15 */3 * from 2024-01-01 499 Cloud storage -> Subscriptions
+//
+// Amounts are in rupees. A monthly day past the end of a short month falls on
+// its last day. A cron schedule has cron's day-of-month, month and day-of-week
+// fields (0 or 7 for Sunday), each *, a number, a range a-b or a list of them,
+// optionally /step; as in cron, when both day fields are restricted a day
+// matching either one is due. Blank lines and lines starting with # are ignored.
+//
+// Occurrences are never stored: every rule knows its next due day, and a heap
+// of (next day, rule) merges the rules in date order, so walking any range
+// holds one entry per rule whatever the number of occurrences.
+//
+// materialize() adds the occurrences due so far to a ledger, in batches, and
+// remembers per rule (by its text) the last day added, so each occurrence is
+// added once. That day only moves forward, and is kept while a rule is out of
+// the file. Changing a rule's text makes it a new rule: to change an amount
+// from some date, end the old rule with "until" and add a new one.
+//
+// Before adding anything it records the day it is materializing through as
+// pending. If it crashes before the final state is saved, the next run finds
+// the pending day and skips occurrences up to it that are already in the
+// ledger, matched on description, day, category and amount.
+class RecurringExpenses {
+    // No further occurrence
+    static final int NONE = Integer.MAX_VALUE;
+
+    private static final Pattern RULE = Pattern.compile(
+            "(daily|weekly\\s+\\S+|monthly\\s+\\S+|cron\\s+\\S+\\s+\\S+\\s+\\S+)\\s+from\\s+(\\S+)"
+                    + "(?:\\s+until\\s+(\\S+))?\\s+(\\S+)\\s+(.+?)\\s*->\\s*(.+)");
+    private static final List<String> WEEKDAYS = Arrays.asList("mon", "tue", "wed", "thu", "fri", "sat", "sun");
+    // Cron patterns like Feb 29 on a Monday can take this long to come round
+    private static final int CRON_SEARCH_DAYS = 28 * 366;
+    private static final String PENDING = "pending ";
+
+    // When a rule is due
+    interface Schedule {
+        // The first due day on or after epochDay, or NONE
+        int next(int epochDay);
+    }
+
+    interface OccurrenceConsumer {
+        void accept(Rule rule, int epochDay);
+    }
+
+    // One recurring expense, immutable
+    static final class Rule {
+        private final String text;
+        private final Schedule schedule;
+        private final int firstDay;
+        private final int lastDay;
+        private final String description;
+        private final String category;
+        private final long amountPaise;
+
+        Rule(String text, Schedule schedule, int firstDay, int lastDay, String description, String category,
+             long amountPaise) {
+            this.text = text;
+            this.schedule = schedule;
+            this.firstDay = firstDay;
+            this.lastDay = lastDay;
+            this.description = description;
+            this.category = category;
+            this.amountPaise = amountPaise;
+        }
+
+        // The first due day on or after epochDay, or NONE
+        int next(int epochDay) {
+            int day = epochDay <= firstDay ? schedule.next(firstDay) : schedule.next(epochDay);
+            return day > lastDay ? NONE : day;
+        }
+
+        public String getText() {
+            return text;
+        }
+
+        public String getDescription() {
+            return description;
+        }
+
+        public String getCategory() {
+            return category;
+        }
+
+        public long getAmountPaise() {
+            return amountPaise;
+        }
+    }
+
+    private final List<Rule> rules;
+    private final Path statePath;
+    // Rule text -> last day materialized
+    private final Map<String, Integer> materializedThrough;
+    // Day an unfinished materialize() was adding occurrences through, or null
+    private Integer pendingThrough;
+
+    private RecurringExpenses(List<Rule> rules, Path statePath, Map<String, Integer> materializedThrough,
+                              Integer pendingThrough) {
+        this.rules = rules;
+        this.statePath = statePath;
+        this.materializedThrough = materializedThrough;
+        this.pendingThrough = pendingThrough;
+    }
+
+    // The rules in rulesFile (none if it does not exist), with what was
+    // materialized so far as recorded in statePath
+    public static RecurringExpenses open(Path rulesFile, Path statePath) throws IOException {
+        List<Rule> rules = Files.exists(rulesFile) ? load(rulesFile) : new ArrayList<>();
+        Map<String, Integer> materializedThrough = new HashMap<>();
+        Integer pendingThrough = null;
+        try {
+            // yyyy-MM-dd <rule text>, and pending yyyy-MM-dd if a run did not finish
+            for (String line : Files.readAllLines(statePath, StandardCharsets.UTF_8)) {
+                if (line.startsWith(PENDING)) {
+                    int day = EpochDays.parse(line.substring(PENDING.length()));
+                    pendingThrough = day == EpochDays.INVALID ? null : day;
+                    continue;
+                }
+                int space = line.indexOf(' ');
+                int day = space < 0 ? EpochDays.INVALID : EpochDays.parse(line.substring(0, space));
+                if (day != EpochDays.INVALID) {
+                    materializedThrough.put(line.substring(space + 1), day);
+                }
+            }
+        } catch (NoSuchFileException e) {
+            // Nothing materialized yet
+        }
+        return new RecurringExpenses(rules, statePath, materializedThrough, pendingThrough);
+    }
+
+    // Parses the rules; throws IllegalArgumentException naming the first
+    // malformed line
+    public static List<Rule> parse(List<String> lines) {
+        List<Rule> rules = new ArrayList<>();
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i).trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            Matcher rule = RULE.matcher(line);
+            if (!rule.matches()) {
+                throw new IllegalArgumentException("line " + (i + 1)
+                        + ": expected <schedule> from <date> [until <date>] <amount> <description> -> <category>");
+            }
+            try {
+                int firstDay = parseDay(rule.group(2));
+                int lastDay = rule.group(3) == null ? NONE - 1 : parseDay(rule.group(3));
+                String category = rule.group(6).trim();
+                if (category.indexOf(',') >= 0) {
+                    throw new IllegalArgumentException("category cannot contain commas");
+                }
+                rules.add(new Rule(line, parseSchedule(rule.group(1).split("\\s+")), firstDay, lastDay,
+                        rule.group(5), category, Money.parse(rule.group(4))));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("line " + (i + 1) + ": " + e.getMessage());
+            }
+        }
+        return rules;
+    }
+
+    public static List<Rule> load(Path file) throws IOException {
+        return parse(Files.readAllLines(file, StandardCharsets.UTF_8));
+    }
+
+    public List<Rule> getRules() {
+        return rules;
+    }
+
+    // Every occurrence of every rule in fromDay..toDay, in date order (rules in
+    // file order on the same day), generated as they are consumed
+    public void forEachOccurrence(int fromDay, int toDay, OccurrenceConsumer consumer) {
+        int[] startDays = new int[rules.size()];
+        Arrays.fill(startDays, fromDay);
+        generate(startDays, toDay, consumer);
+    }
+
+    // Adds every occurrence due up to toDay and not added before to the ledger,
+    // then records them as added; returns how many were added. A handful are
+    // added one by one and journaled; more go in as BATCH_ROWS-row imports and
+    // one snapshot. Call from one thread at a time.
+    public int materialize(LedgerEngine ledger, int toDay) throws IOException {
+        int[] startDays = new int[rules.size()];
+        int firstDue = NONE;
+        for (int i = 0; i < startDays.length; i++) {
+            Integer through = materializedThrough.get(rules.get(i).text);
+            startDays[i] = through == null ? Integer.MIN_VALUE : through + 1;
+            firstDue = Math.min(firstDue, rules.get(i).next(startDays[i]));
+        }
+        // Occurrences up to here may be in the ledger from a run that crashed
+        int reconcileThrough = pendingThrough == null ? Integer.MIN_VALUE : Math.min(pendingThrough, toDay);
+        Map<String, Integer> present = firstDue <= reconcileThrough
+                ? inLedger(ledger, firstDue, reconcileThrough) : new HashMap<>();
+        // Recorded before any row goes in
+        if (firstDue <= toDay && (pendingThrough == null || pendingThrough < toDay)) {
+            pendingThrough = toDay;
+            saveState();
+        }
+
+        ExpenseStore[] batch = {new ExpenseStore()};
+        boolean[] imported = {false};
+        int[] added = {0};
+        generate(startDays, toDay, (rule, epochDay) -> {
+            if (epochDay <= reconcileThrough
+                    && take(present, key(rule.description, epochDay, rule.category, rule.amountPaise))) {
+                return;
+            }
+            batch[0].add(rule.description, epochDay, rule.category, rule.amountPaise);
+            added[0]++;
+            if (batch[0].size() == ExpenseImporter.BATCH_ROWS) {
+                ledger.importRows(batch[0]);
+                batch[0] = new ExpenseStore();
+                imported[0] = true;
+            }
+        });
+        if (imported[0]) {
+            ledger.importRows(batch[0]);
+            ledger.commitImport();
+        } else {
+            ExpenseStore rows = batch[0];
+            for (int row = 0; row < rows.size(); row++) {
+                ledger.add(rows.getDescription(row), rows.getEpochDay(row), rows.getCategory(row),
+                        rows.getAmountPaise(row));
+            }
+        }
+        if (added[0] > 0) {
+            // The ledger first; a crash in between leaves the pending day to reconcile
+            ledger.flush();
+        }
+
+        // Never backwards, e.g. after the clock is set back, and rules missing from
+        // the file keep theirs in case they come back
+        Map<String, Integer> through = new HashMap<>(materializedThrough);
+        for (Rule rule : rules) {
+            through.merge(rule.text, toDay, Math::max);
+        }
+        Integer pending = pendingThrough != null && pendingThrough > toDay ? pendingThrough : null;
+        if (added[0] > 0 || !through.equals(materializedThrough) || !Objects.equals(pending, pendingThrough)) {
+            materializedThrough.clear();
+            materializedThrough.putAll(through);
+            pendingThrough = pending;
+            saveState();
+        }
+        return added[0];
+    }
+
+    // Count of each ledger row in fromDay..toDay, by key()
+    private static Map<String, Integer> inLedger(LedgerEngine ledger, int fromDay, int toDay) {
+        return ledger.read(s -> {
+            Map<String, Integer> counts = new HashMap<>();
+            ExpenseView rows = s.byDateRange(fromDay, toDay);
+            for (int position = 0; position < rows.size(); position++) {
+                int row = rows.getRow(position);
+                counts.merge(key(s.getDescription(row), s.getEpochDay(row), s.getCategory(row),
+                        s.getAmountPaise(row)), 1, Integer::sum);
+            }
+            return counts;
+        });
+    }
+
+    // Descriptions and categories never hold line breaks
+    private static String key(String description, int epochDay, String category, long amountPaise) {
+        return description + '\n' + epochDay + '\n' + category + '\n' + amountPaise;
+    }
+
+    // Takes one from the key's count; false if there is none left
+    private static boolean take(Map<String, Integer> counts, String key) {
+        Integer count = counts.get(key);
+        if (count == null) {
+            return false;
+        }
+        if (count == 1) {
+            counts.remove(key);
+        } else {
+            counts.put(key, count - 1);
+        }
+        return true;
+    }
+
+    // Heap of (next day << 32 | rule index): pops the earliest occurrence and
+    // pushes that rule's next one
+    private void generate(int[] startDays, int toDay, OccurrenceConsumer consumer) {
+        long[] heap = new long[rules.size()];
+        int size = 0;
+        for (int i = 0; i < startDays.length; i++) {
+            int day = rules.get(i).next(startDays[i]);
+            if (day <= toDay) {
+                heap[size] = entry(day, i);
+                siftUp(heap, size++);
+            }
+        }
+        while (size > 0) {
+            int day = (int) (heap[0] >> 32);
+            int index = (int) heap[0];
+            Rule rule = rules.get(index);
+            consumer.accept(rule, day);
+            int next = day == NONE - 1 ? NONE : rule.next(day + 1);
+            if (next <= toDay) {
+                heap[0] = entry(next, index);
+            } else {
+                heap[0] = heap[--size];
+            }
+            siftDown(heap, size);
+        }
+    }
+
+    private static long entry(int day, int index) {
+        return (long) day << 32 | index;
+    }
+
+    private static void siftUp(long[] heap, int position) {
+        long entry = heap[position];
+        while (position > 0) {
+            int parent = (position - 1) >>> 1;
+            if (heap[parent] <= entry) {
+                break;
+            }
+            heap[position] = heap[parent];
+            position = parent;
+        }
+        heap[position] = entry;
+    }
+
+    private static void siftDown(long[] heap, int size) {
+        if (size == 0) {
+            return;
+        }
+        long entry = heap[0];
+        int position = 0;
+        for (int child = 1; child < size; child = 2 * position + 1) {
+            if (child + 1 < size && heap[child + 1] < heap[child]) {
+                child++;
+            }
+            if (entry <= heap[child]) {
+                break;
+            }
+            heap[position] = heap[child];
+            position = child;
+        }
+        heap[position] = entry;
+    }
+
+    // Written to a temp file and renamed over the old state
+    private void saveState() throws IOException {
+        Path tmp = statePath.resolveSibling(statePath.getFileName() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp.toFile());
+             BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8))) {
+            StringBuilder line = new StringBuilder();
+            if (pendingThrough != null) {
+                writer.append(EpochDays.appendTo(line.append(PENDING), pendingThrough).append('\n'));
+            }
+            for (Map.Entry<String, Integer> rule : materializedThrough.entrySet()) {
+                line.setLength(0);
+                EpochDays.appendTo(line, rule.getValue()).append(' ').append(rule.getKey()).append('\n');
+                writer.append(line);
+            }
+            writer.flush();
+            out.getChannel().force(true);
+        }
+        Files.move(tmp, statePath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static int parseDay(String text) {
+        int day = EpochDays.parse(text);
+        if (day == EpochDays.INVALID) {
+            throw new IllegalArgumentException("invalid date " + text);
+        }
+        return day;
+    }
+
+    private static Schedule parseSchedule(String[] words) {
+        switch (words[0]) {
+            case "daily":
+                return day -> day;
+            case "weekly":
+                int weekday = WEEKDAYS.indexOf(words[1].toLowerCase(Locale.ROOT)) + 1;
+                if (weekday == 0) {
+                    throw new IllegalArgumentException("expected a weekday (mon..sun): " + words[1]);
+                }
+                return day -> day + Math.floorMod(weekday - EpochDays.dayOfWeek(day), 7);
+            case "monthly":
+                int dayOfMonth = words[1].equalsIgnoreCase("last") ? 31 : parseNumber(words[1], 1, 31);
+                return day -> {
+                    int month = EpochDays.monthIndex(day);
+                    int due = dueDay(month, dayOfMonth);
+                    return due >= day ? due : dueDay(month + 1, dayOfMonth);
+                };
+            default:
+                return cron(parseField(words[1], 1, 31), parseField(words[2], 1, 12), parseField(words[3], 0, 7),
+                        !words[1].startsWith("*"), !words[3].startsWith("*"));
+        }
+    }
+
+    // The day of the month, or the month's last day if it is shorter
+    private static int dueDay(int month, int dayOfMonth) {
+        int first = EpochDays.firstDayOfMonth(month);
+        return first + Math.min(dayOfMonth, EpochDays.firstDayOfMonth(month + 1) - first) - 1;
+    }
+
+    // Bit n of each mask is set if value n matches; months the mask rules out are
+    // skipped whole
+    private static Schedule cron(long daysOfMonth, long months, long daysOfWeek, boolean dayOfMonthRestricted,
+                                 boolean dayOfWeekRestricted) {
+        long weekdays = (daysOfWeek | daysOfWeek >>> 7) & 0x7F;
+        return from -> {
+            int day = from;
+            int limit = from + CRON_SEARCH_DAYS;
+            while (day <= limit && day >= from) {
+                int month = EpochDays.monthIndex(day);
+                int first = EpochDays.firstDayOfMonth(month);
+                if ((months & 1L << (Math.floorMod(month, 12) + 1)) == 0) {
+                    day = EpochDays.firstDayOfMonth(month + 1);
+                    continue;
+                }
+                boolean domMatches = (daysOfMonth & 1L << (day - first + 1)) != 0;
+                boolean dowMatches = (weekdays & 1L << (EpochDays.dayOfWeek(day) % 7)) != 0;
+                if (dayOfMonthRestricted && dayOfWeekRestricted ? domMatches || dowMatches
+                        : domMatches && dowMatches) {
+                    return day;
+                }
+                day++;
+            }
+            return NONE;
+        };
+    }
+
+    // *, n, a-b, any of them with /step, or a comma-separated list, as a bit mask
+    private static long parseField(String field, int min, int max) {
+        long mask = 0;
+        for (String part : field.split(",")) {
+            int slash = part.indexOf('/');
+            String range = slash < 0 ? part : part.substring(0, slash);
+            int step = slash < 0 ? 1 : parseNumber(part.substring(slash + 1), 1, max);
+            int low;
+            int high;
+            if (range.equals("*")) {
+                low = min;
+                high = max;
+            } else if (range.indexOf('-') > 0) {
+                low = parseNumber(range.substring(0, range.indexOf('-')), min, max);
+                high = parseNumber(range.substring(range.indexOf('-') + 1), low, max);
+            } else {
+                low = parseNumber(range, min, max);
+                high = slash < 0 ? low : max;
+            }
+            for (int value = low; value <= high; value += step) {
+                mask |= 1L << value;
+            }
+        }
+        return mask;
+    }
+
+    private static int parseNumber(String text, int min, int max) {
+        int value = Integer.parseInt(text);
+        if (value < min || value > max) {
+            throw new IllegalArgumentException(text + " is not in " + min + ".." + max);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,121 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+// Runs its tasks one at a time in submission order, like a single-thread
+// executor, but on threads borrowed from a shared pool. An idle queue holds no
+// thread, so a process can host any number of them; the shared I/O pool has a
+// thread per core and lets them time out when there is no work.
+//
+// A busy queue gives its thread back after MAX_TASKS_PER_TURN tasks and queues
+// itself again, so one ledger's burst of writes cannot starve the others.
+final class SerialExecutor extends AbstractExecutorService {
+    private static final int MAX_TASKS_PER_TURN = 64;
+    private static final int IO_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+    private static final ThreadPoolExecutor IO_POOL = new ThreadPoolExecutor(IO_THREADS, IO_THREADS,
+            30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), r -> {
+        Thread thread = new Thread(r, "ledger-io");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        IO_POOL.allowCoreThreadTimeOut(true);
+    }
+
+    private final Executor pool;
+    private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+    private boolean running;
+    private boolean shutdown;
+
+    SerialExecutor(Executor pool) {
+        this.pool = pool;
+    }
+
+    // A queue on the shared I/O pool
+    static SerialExecutor forIo() {
+        return new SerialExecutor(IO_POOL);
+    }
+
+    @Override
+    public synchronized void execute(Runnable task) {
+        if (shutdown) {
+            throw new RejectedExecutionException("Executor has been shut down");
+        }
+        tasks.add(task);
+        if (!running) {
+            running = true;
+            pool.execute(this::runTurn);
+        }
+    }
+
+    private void runTurn() {
+        for (int run = 0; run < MAX_TASKS_PER_TURN; run++) {
+            Runnable task;
+            synchronized (this) {
+                task = tasks.poll();
+                if (task == null) {
+                    running = false;
+                    notifyAll();
+                    return;
+                }
+            }
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                Metrics.failed(e);
+            }
+        }
+        synchronized (this) {
+            if (tasks.isEmpty()) {
+                running = false;
+                notifyAll();
+                return;
+            }
+        }
+        pool.execute(this::runTurn);
+    }
+
+    // Queued tasks still run
+    @Override
+    public synchronized void shutdown() {
+        shutdown = true;
+    }
+
+    @Override
+    public synchronized List<Runnable> shutdownNow() {
+        shutdown = true;
+        List<Runnable> pending = new ArrayList<>(tasks);
+        tasks.clear();
+        return pending;
+    }
+
+    @Override
+    public synchronized boolean isShutdown() {
+        return shutdown;
+    }
+
+    @Override
+    public synchronized boolean isTerminated() {
+        return shutdown && !running && tasks.isEmpty();
+    }
+
+    @Override
+    public synchronized boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!isTerminated()) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return true;
+    }
+}
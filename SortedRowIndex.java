@@ -0,0 +1,245 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.IntPredicate;
+import java.util.function.IntToLongFunction;
+
+// Row indexes of an ExpenseStore kept in the order of a RowComparator (any ties it
+// leaves are broken by row index). Rows live in sorted chunks of at most
+// MAX_CHUNK entries, a two-level B-tree: lookups binary-search the chunk
+// boundaries and then the chunk, so a range query costs O(log N) comparisons
+// plus the rows it returns, and an insert or delete moves at most one chunk's
+// worth of ints.
+//
+// Each chunk also keeps the sum of its rows' weights (amounts), so a running
+// total at any position needs the chunk prefix plus at most one chunk scan.
+class SortedRowIndex {
+    private static final int MAX_CHUNK = 1024;
+
+    private static final class Chunk {
+        final int[] rows = new int[MAX_CHUNK];
+        int size;
+        long sum;
+
+        int last() {
+            return rows[size - 1];
+        }
+    }
+
+    private final ExpenseStore.RowComparator order;
+    private final IntToLongFunction weight;
+    private final List<Chunk> chunks = new ArrayList<>();
+    private int[] chunkStarts = new int[0];
+    private long[] chunkSumsBefore = new long[0];
+    private boolean chunkStartsValid = true;
+    private boolean built;
+    private int size;
+
+    public SortedRowIndex(ExpenseStore.RowComparator order, IntToLongFunction weight) {
+        this.order = order;
+        this.weight = weight;
+    }
+
+    // Replaces the contents with rows 0..count-1
+    public void build(int count) {
+        int[] rows = new int[count];
+        for (int i = 0; i < count; i++) {
+            rows[i] = i;
+        }
+        ExpenseStore.mergeSort(rows, new int[count], 0, count, this::compare);
+        chunks.clear();
+        // Fill chunks half way so the first inserts do not split them
+        for (int start = 0; start < count; start += MAX_CHUNK / 2) {
+            Chunk chunk = new Chunk();
+            chunk.size = Math.min(MAX_CHUNK / 2, count - start);
+            System.arraycopy(rows, start, chunk.rows, 0, chunk.size);
+            chunk.sum = sum(chunk, 0, chunk.size);
+            chunks.add(chunk);
+        }
+        size = count;
+        chunkStartsValid = false;
+        built = true;
+    }
+
+    // Until build() is called, insert, remove and replace are ignored
+    public boolean isBuilt() {
+        return built;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // Row at the given position in index order
+    public int get(int position) {
+        if (position < 0 || position >= size) {
+            throw new IndexOutOfBoundsException("Position: " + position + ", Size: " + size);
+        }
+        int c = chunkContaining(position);
+        return chunks.get(c).rows[position - chunkStarts()[c]];
+    }
+
+    // Sum of the weights of the rows at positions 0..position-1
+    public long sumBefore(int position) {
+        if (position >= size) {
+            return chunks.isEmpty() ? 0 : chunkSumsBefore()[chunks.size() - 1] + chunks.get(chunks.size() - 1).sum;
+        }
+        int c = chunkContaining(position);
+        return chunkSumsBefore()[c] + sum(chunks.get(c), 0, position - chunkStarts()[c]);
+    }
+
+    // First position whose row does not satisfy before; before must hold for a
+    // prefix of the index (e.g. "row's key < bound")
+    public int firstPosition(IntPredicate before) {
+        int low = 0;
+        int high = chunks.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (before.test(chunks.get(mid).last())) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        if (low == chunks.size()) {
+            return size;
+        }
+        Chunk chunk = chunks.get(low);
+        int from = 0;
+        int to = chunk.size;
+        while (from < to) {
+            int mid = (from + to) >>> 1;
+            if (before.test(chunk.rows[mid])) {
+                from = mid + 1;
+            } else {
+                to = mid;
+            }
+        }
+        return chunkStarts()[low] + from;
+    }
+
+    public void insert(int row) {
+        if (!built) {
+            return;
+        }
+        if (chunks.isEmpty()) {
+            Chunk chunk = new Chunk();
+            chunk.rows[0] = row;
+            chunk.size = 1;
+            chunk.sum = weight.applyAsLong(row);
+            chunks.add(chunk);
+            size = 1;
+            chunkStartsValid = false;
+            return;
+        }
+        int index = firstPosition(other -> compare(other, row) < 0);
+        int c = index == size ? chunks.size() - 1 : chunkContaining(index);
+        Chunk chunk = chunks.get(c);
+        int offset = index - chunkStarts()[c];
+        System.arraycopy(chunk.rows, offset, chunk.rows, offset + 1, chunk.size - offset);
+        chunk.rows[offset] = row;
+        chunk.size++;
+        chunk.sum += weight.applyAsLong(row);
+        size++;
+        if (chunk.size == MAX_CHUNK) {
+            Chunk upper = new Chunk();
+            upper.size = MAX_CHUNK / 2;
+            System.arraycopy(chunk.rows, MAX_CHUNK / 2, upper.rows, 0, upper.size);
+            upper.sum = sum(upper, 0, upper.size);
+            chunk.size = MAX_CHUNK / 2;
+            chunk.sum -= upper.sum;
+            chunks.add(c + 1, upper);
+        }
+        chunkStartsValid = false;
+    }
+
+    // Removes the row; its column values must still be the ones it was indexed with
+    public void remove(int row) {
+        int position = built ? positionOf(row) : -1;
+        if (position < 0) {
+            return;
+        }
+        int c = chunkContaining(position);
+        Chunk chunk = chunks.get(c);
+        int offset = position - chunkStarts()[c];
+        System.arraycopy(chunk.rows, offset + 1, chunk.rows, offset, chunk.size - offset - 1);
+        chunk.size--;
+        chunk.sum -= weight.applyAsLong(row);
+        size--;
+        if (chunk.size == 0) {
+            chunks.remove(c);
+        }
+        chunkStartsValid = false;
+    }
+
+    // Points the entry for oldRow at newRow, which holds the same values; the
+    // comparator's tie-break must not depend on the row index
+    public void replace(int oldRow, int newRow) {
+        int position = built ? positionOf(oldRow) : -1;
+        if (position < 0) {
+            return;
+        }
+        int c = chunkContaining(position);
+        chunks.get(c).rows[position - chunkStarts()[c]] = newRow;
+    }
+
+    // Position of the row, or -1 if it is not in the index
+    private int positionOf(int row) {
+        int position = firstPosition(other -> compare(other, row) < 0);
+        return position < size && get(position) == row ? position : -1;
+    }
+
+    // Chunk holding the position
+    private int chunkContaining(int position) {
+        int[] starts = chunkStarts();
+        int low = 0;
+        int high = chunks.size() - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (starts[mid] <= position) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    // Recomputed lazily after a change; synchronized for concurrent readers
+    private synchronized int[] chunkStarts() {
+        if (!chunkStartsValid) {
+            if (chunkStarts.length < chunks.size()) {
+                chunkStarts = new int[Math.max(chunks.size(), chunkStarts.length * 2)];
+                chunkSumsBefore = new long[chunkStarts.length];
+            }
+            int start = 0;
+            long sum = 0;
+            for (int c = 0; c < chunks.size(); c++) {
+                chunkStarts[c] = start;
+                chunkSumsBefore[c] = sum;
+                start += chunks.get(c).size;
+                sum += chunks.get(c).sum;
+            }
+            chunkStartsValid = true;
+        }
+        return chunkStarts;
+    }
+
+    private synchronized long[] chunkSumsBefore() {
+        chunkStarts();
+        return chunkSumsBefore;
+    }
+
+    private long sum(Chunk chunk, int from, int to) {
+        long sum = 0;
+        for (int i = from; i < to; i++) {
+            sum += weight.applyAsLong(chunk.rows[i]);
+        }
+        return sum;
+    }
+
+    // The index order, with ties broken by row index
+    int compare(int row1, int row2) {
+        int result = order.compare(row1, row2);
+        return result != 0 ? result : Integer.compare(row1, row2);
+    }
+}